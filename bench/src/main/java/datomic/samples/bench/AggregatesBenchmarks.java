@@ -0,0 +1,55 @@
+package datomic.samples.bench;
+
+import datomic.Connection;
+import datomic.Database;
+import datomic.samples.Aggregates;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import static datomic.samples.Fns.scratchConnection;
+import static datomic.samples.IO.transactAllFromResource;
+
+/**
+ * The aggregates from Aggregates, against bigger-than-pluto.edn.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AggregatesBenchmarks {
+    private Database db;
+
+    @Setup
+    public void setup() {
+        Connection conn = scratchConnection();
+        transactAllFromResource(conn, "datomic-java-examples/bigger-than-pluto.edn");
+        db = conn.db();
+    }
+
+    @Benchmark
+    public Object biggestObjectRadius() {
+        return Aggregates.biggestObjectRadius(db);
+    }
+
+    @Benchmark
+    public Object randomObject() {
+        return Aggregates.randomObject(db);
+    }
+
+    @Benchmark
+    public Object sampleFiveObjects() {
+        return Aggregates.sampleFiveObjects(db);
+    }
+}
@@ -0,0 +1,27 @@
+package datomic.samples.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler attached, so every result
+ * includes allocation rate per operation (gc.alloc.rate.norm) next to
+ * throughput and average time. Accepts the usual JMH command line, e.g.
+ * a benchmark name regex or -p artists=1000.
+ */
+public class BenchmarkRunner {
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        CommandLineOptions cmd = new CommandLineOptions(args);
+        OptionsBuilder opts = new OptionsBuilder();
+        opts.parent(cmd);
+        if (cmd.getIncludes().isEmpty()) {
+            opts.include("datomic\\.samples\\.bench\\..*");
+        }
+        opts.addProfiler(GCProfiler.class);
+        new Runner(opts.build()).run();
+    }
+}
@@ -0,0 +1,65 @@
+package datomic.samples.bench;
+
+import datomic.Database;
+import datomic.Datom;
+import datomic.samples.PreparedQuery;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static datomic.Util.read;
+
+/**
+ * MaybeQuery.maybe, reading EAVT directly, against maybeByQuery, which
+ * runs two nested queries, called once per row of an outer query over
+ * a growing number of tracks.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MaybeBenchmarks {
+    @Param({"100", "1000", "10000", "100000"})
+    public int rows;
+
+    @Param({"maybe", "maybeByQuery"})
+    public String impl;
+
+    private PreparedQuery query;
+    private Object[] inputs;
+
+    @Setup
+    public void setup() {
+        Database db = MbrainzFixture.db(1000);
+        List<Object> tracks = new ArrayList<Object>();
+        for (Iterator<Datom> it = db.datoms(Database.AEVT, read(":track/name")).iterator();
+             it.hasNext() && tracks.size() < rows; ) {
+            tracks.add(it.next().e());
+        }
+        query = PreparedQuery.prepare("[:find ?t ?artists " +
+                                      " :in $ [?t ...] " +
+                                      " :where [(datomic.samples.MaybeQuery/" + impl +
+                                      "          $ ?t :track/artists \"<none>\") ?artists]]");
+        inputs = new Object[]{db, tracks};
+    }
+
+    @Benchmark
+    public Object query() {
+        return query.query(inputs);
+    }
+}
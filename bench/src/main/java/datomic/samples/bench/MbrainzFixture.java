@@ -0,0 +1,39 @@
+package datomic.samples.bench;
+
+import datomic.Connection;
+import datomic.Database;
+import datomic.samples.DataGenerator;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static datomic.samples.Fns.scratchConnection;
+import static datomic.samples.IO.transactAllFromResource;
+
+/**
+ * In-memory mbrainz-shaped databases for the benchmarks, built once per
+ * size per JVM by DataGenerator from a fixed seed.
+ */
+public class MbrainzFixture {
+    private static final Map<Integer, Database> dbs = new HashMap<Integer, Database>();
+
+    public static synchronized Database db(int artists) {
+        Database db = dbs.get(artists);
+        if (db == null) {
+            db = build(artists);
+            dbs.put(artists, db);
+        }
+        return db;
+    }
+
+    public static String artistName(int i) {
+        return DataGenerator.artistName(i);
+    }
+
+    private static Database build(int artists) {
+        Connection conn = scratchConnection();
+        transactAllFromResource(conn, DataGenerator.MBRAINZ_SCHEMA);
+        DataGenerator.load(conn, new DataGenerator(42, 10).mbrainz(artists), 4);
+        return conn.db();
+    }
+}
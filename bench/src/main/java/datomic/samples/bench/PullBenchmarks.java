@@ -0,0 +1,82 @@
+package datomic.samples.bench;
+
+import datomic.Database;
+import datomic.Peer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The pull patterns from Pull.main, against generated mbrainz data.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PullBenchmarks {
+    // pattern name -> {pattern, entity kind it is pulled from}
+    private static final Map<String, String[]> PATTERNS = new HashMap<String, String[]>();
+    static {
+        PATTERNS.put("attributes", new String[]{"[:artist/name :artist/startYear]", "artist"});
+        PATTERNS.put("reverse", new String[]{"[:artist/_country]", "country"});
+        PATTERNS.put("component-defaults", new String[]{"[:release/media]", "release"});
+        PATTERNS.put("reverse-component", new String[]{"[:release/_media]", "medium"});
+        PATTERNS.put("map-spec", new String[]{"[:track/name {:track/artists [:db/id :artist/name]}]", "track"});
+        PATTERNS.put("nested-map-spec", new String[]{"[{:release/media [{:medium/tracks [:track/name {:track/artists [:artist/name]}]}]}]", "release"});
+        PATTERNS.put("wildcard", new String[]{"[*]", "release"});
+        PATTERNS.put("wildcard-map-spec", new String[]{"[* {:track/artists [:artist/name]}]", "track"});
+        PATTERNS.put("default", new String[]{"[:artist/name (default :artist/endYear 0)]", "artist"});
+        PATTERNS.put("limit-subspec", new String[]{"[{(limit :track/_artists 10) [:track/name]}]", "artist"});
+        PATTERNS.put("no-limit", new String[]{"[{(limit :track/_artists nil) [:track/name]}]", "artist"});
+    }
+
+    private static final Map<String, String> ENTITIES = new HashMap<String, String>();
+    static {
+        ENTITIES.put("artist", "[:find ?e . :in $ ?name :where [?e :artist/name ?name]]");
+        ENTITIES.put("release", "[:find ?e . :in $ ?name :where [?a :artist/name ?name] [?e :release/artists ?a]]");
+        ENTITIES.put("medium", "[:find ?e . :in $ ?name :where [?a :artist/name ?name] [?r :release/artists ?a] [?r :release/media ?e]]");
+        ENTITIES.put("track", "[:find ?e . :in $ ?name :where [?a :artist/name ?name] [?e :track/artists ?a]]");
+    }
+
+    @Param({"100", "1000"})
+    public int artists;
+
+    @Param({"attributes", "reverse", "component-defaults", "reverse-component", "map-spec", "nested-map-spec",
+            "wildcard", "wildcard-map-spec", "default", "limit-subspec", "no-limit"})
+    public String pattern;
+
+    private Database db;
+    private String spec;
+    private Object eid;
+
+    @Setup
+    public void setup() {
+        db = MbrainzFixture.db(artists);
+        String[] p = PATTERNS.get(pattern);
+        spec = p[0];
+        if (p[1].equals("country")) {
+            eid = ":country/GB";
+        } else {
+            eid = Peer.query(ENTITIES.get(p[1]), db, MbrainzFixture.artistName(artists / 2));
+        }
+    }
+
+    @Benchmark
+    public Object pull() {
+        return db.pull(spec, eid);
+    }
+}
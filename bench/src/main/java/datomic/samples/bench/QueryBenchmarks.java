@@ -0,0 +1,120 @@
+package datomic.samples.bench;
+
+import datomic.Database;
+import datomic.samples.PreparedQuery;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static datomic.Util.list;
+
+/**
+ * The query shapes from Query.main, against generated mbrainz data.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueryBenchmarks {
+    private static final Map<String, String> QUERIES = new HashMap<String, String>();
+    static {
+        QUERIES.put("join",
+                    "[:find ?release-name " +
+                    " :in $ ?artist-name " +
+                    " :where [?artist :artist/name ?artist-name] " +
+                    "        [?release :release/artists ?artist] " +
+                    "        [?release :release/name ?release-name]]");
+        QUERIES.put("collection-binding",
+                    "[:find ?release-name " +
+                    " :in $ [?artist-name ...] " +
+                    " :where [?artist :artist/name ?artist-name] " +
+                    "        [?release :release/artists ?artist] " +
+                    "        [?release :release/name ?release-name]]");
+        QUERIES.put("not",
+                    "[:find (count ?eid) . " +
+                    " :where [?eid :artist/name] " +
+                    "        (not [?eid :artist/country :country/CA])]");
+        QUERIES.put("not-join",
+                    "[:find (count ?artist) . " +
+                    " :where [?artist :artist/name] " +
+                    "        (not-join [?artist] " +
+                    "          [?release :release/artists ?artist] " +
+                    "          [?release :release/year 1970])]");
+        QUERIES.put("or-join",
+                    "[:find (count ?release) . " +
+                    " :where [?release :release/name] " +
+                    "        (or-join [?release] " +
+                    "          (and [?release :release/artists ?artist] " +
+                    "               [?artist :artist/country :country/CA]) " +
+                    "          [?release :release/year 1970])]");
+        QUERIES.put("min-max",
+                    "[:find [(min ?dur) (max ?dur)] " +
+                    " :where [_ :track/duration ?dur]]");
+        QUERIES.put("sum-with",
+                    "[:find (sum ?count) . " +
+                    " :with ?medium " +
+                    " :where [?medium :medium/trackCount ?count]]");
+        QUERIES.put("count-distinct",
+                    "[:find [(count ?name) (count-distinct ?name)] " +
+                    " :with ?artist " +
+                    " :where [?artist :artist/name ?name]]");
+        QUERIES.put("get-else",
+                    "[:find ?artist-name ?year " +
+                    " :in $ [?artist-name ...] " +
+                    " :where [?artist :artist/name ?artist-name] " +
+                    "        [(get-else $ ?artist :artist/startYear \"N/A\") ?year]]");
+        QUERIES.put("missing",
+                    "[:find ?name " +
+                    " :where [?artist :artist/name ?name] " +
+                    "        [(missing? $ ?artist :artist/startYear)]]");
+        QUERIES.put("fulltext",
+                    "[:find ?entity ?name ?tx ?score " +
+                    " :in $ ?search " +
+                    " :where [(fulltext $ :track/name ?search) [[?entity ?name ?tx ?score]]]]");
+    }
+
+    @Param({"100", "1000"})
+    public int artists;
+
+    @Param({"join", "collection-binding", "not", "not-join", "or-join", "min-max",
+            "sum-with", "count-distinct", "get-else", "missing", "fulltext"})
+    public String shape;
+
+    private PreparedQuery query;
+    private Object[] inputs;
+
+    @Setup
+    public void setup() {
+        Database db = MbrainzFixture.db(artists);
+        query = PreparedQuery.prepare(QUERIES.get(shape));
+        if (shape.equals("join")) {
+            inputs = new Object[]{db, MbrainzFixture.artistName(artists / 2)};
+        } else if (shape.equals("collection-binding") || shape.equals("get-else")) {
+            inputs = new Object[]{db, list(MbrainzFixture.artistName(1), MbrainzFixture.artistName(artists / 2),
+                                           MbrainzFixture.artistName(artists - 1))};
+        } else if (shape.equals("fulltext")) {
+            inputs = new Object[]{db, "Jane"};
+        } else {
+            inputs = new Object[]{db};
+        }
+    }
+
+    @Benchmark
+    public Object query() {
+        return query.query(inputs);
+    }
+}
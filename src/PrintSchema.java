@@ -5,6 +5,7 @@
 import datomic.Entity;
 import datomic.Connection;
 import datomic.Database;
+import datomic.samples.SchemaRegistry;
 
 import java.util.Collection;
 import java.util.Iterator;
@@ -52,6 +53,18 @@ public class PrintSchema {
         printEntities(tuples);
     }
 
+    /**
+     * Like printAttributeSchema(db), from a registry that already holds
+     * every attribute, so nothing is queried.
+     * @param schema
+     */
+    public static void printAttributeSchema(SchemaRegistry schema) {
+        for (Iterator<SchemaRegistry.Attribute> iterator = schema.attributes().iterator(); iterator.hasNext();) {
+            System.out.println();
+            System.out.println(iterator.next());
+        }
+    }
+
     public static void main(String[] args) {
         String uri = "datomic:mem://db";
         createDatabase(uri);
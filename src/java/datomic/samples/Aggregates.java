@@ -5,7 +5,6 @@ import datomic.Database;
 
 import java.io.IOException;
 
-import static datomic.Peer.query;
 import static datomic.samples.Fns.scratchConnection;
 import static datomic.samples.IO.transactAllFromResource;
 import static datomic.samples.PrettyPrint.print;
@@ -23,19 +22,29 @@ public class Aggregates {
 
     }
 
+    private static final PreparedQuery biggestObjectRadius =
+            PreparedQuery.prepare("[:find (max ?radius) ." +
+                                  " :where [_ :object/meanRadius ?radius]]");
+
     public static Object biggestObjectRadius(Database db) {
-        return query("[:find (max ?radius) ." +
-                     " :where [_ :object/meanRadius ?radius]]", db);
+        // :object/meanRadius is indexed, so this is a search of AVET rather than a scan
+        return IndexExtremes.answer(biggestObjectRadius.form(), db);
     }
 
+    private static final PreparedQuery randomObject =
+            PreparedQuery.prepare("[:find (rand ?name) ." +
+                                  " :where [?e :object/name ?name]]");
+
     public static Object randomObject(Database db) {
-        return query("[:find (rand ?name) ." +
-                     " :where [?e :object/name ?name]]", db);
+        return randomObject.query(db);
     }
 
+    private static final PreparedQuery sampleFiveObjects =
+            PreparedQuery.prepare("[:find (sample 5 ?name) ." +
+                                  " :with ?e" +
+                                  " :where [?e :object/name ?name]]");
+
     public static Object sampleFiveObjects(Database db) {
-        return query("[:find (sample 5 ?name) ." +
-                     " :with ?e" +
-                     " :where [?e :object/name ?name]]", db);
+        return sampleFiveObjects.query(db);
     }
 }
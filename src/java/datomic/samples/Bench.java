@@ -0,0 +1,27 @@
+package datomic.samples;
+
+/**
+ * Minimal timing harness for the benchmark mains in this package. Use
+ * the JMH benchmarks for anything that needs rigorous numbers.
+ */
+public class Bench {
+    /**
+     * Runs task warmup times, then times iterations more runs.
+     *
+     * @return mean nanoseconds per run
+     */
+    public static double nsPerOp(int warmup, int iterations, Runnable task) {
+        for (int i = 0; i < warmup; i++) {
+            task.run();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            task.run();
+        }
+        return (System.nanoTime() - start) / (double) iterations;
+    }
+
+    public static void report(String name, double nsPerOp) {
+        System.out.printf("%-40s %12.1f us/op%n", name, nsPerOp / 1e3);
+    }
+}
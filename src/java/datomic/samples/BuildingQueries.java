@@ -9,7 +9,6 @@ import java.net.URL;
 import java.util.Collection;
 import java.util.List;
 
-import static datomic.Peer.query;
 import static datomic.Util.list;
 import static datomic.samples.Fns.scratchConnection;
 import static datomic.samples.IO.resource;
@@ -19,33 +18,41 @@ import static datomic.samples.PrettyPrint.print;
 
 public class BuildingQueries {
 
+    private static final PreparedQuery variableBinding =
+            PreparedQuery.prepare("[:find [?e ...]" +
+                                  " :in $ ?name" +
+                                  " :where [?e :user/firstName ?name]]");
+
     public static void queryWithVariableBinding(Database db) {
-        print(query("[:find [?e ...]" +
-                    " :in $ ?name" +
-                    " :where [?e :user/firstName ?name]]",
-                    db, "Stewart"));
+        print(variableBinding.query(db, "Stewart"));
     }
 
+    private static final PreparedQuery collectionBinding =
+            PreparedQuery.prepare("[:find [?e ...]" +
+                                  " :in $ [?name ...]" +
+                                  " :where [?e :user/firstName ?name]]");
+
     public static void queryWithCollectionBinding(Database db) {
-        print(query("[:find [?e ...]" +
-                    " :in $ [?name ...]" +
-                    " :where [?e :user/firstName ?name]]",
-                    db, list("Stewart", "Stuart")));
+        print(collectionBinding.query(db, list("Stewart", "Stuart")));
     }
 
+    private static final PreparedQuery multipleCollectionBindings =
+            PreparedQuery.prepare("[:find [?e ...]" +
+                                  " :in $ [?name ...] [?attr ...]" +
+                                  " :where [?e ?attr ?name]]");
+
     public static void queryWithMultipleCollectionBindings(Database db) {
-        print(query("[:find [?e ...]" +
-                    " :in $ [?name ...] [?attr ...]" +
-                    " :where [?e ?attr ?name]]",
-                    db, list("Stuart", "Stewart"), list(":user/firstName", ":user/lastName")));
+        print(multipleCollectionBindings.query(db, list("Stuart", "Stewart"), list(":user/firstName", ":user/lastName")));
     }
 
+    private static final PreparedQuery mapForm =
+            PreparedQuery.prepare("{:find [[?e ...]]" +
+                                  " :in [$ ?fname ?lname]" +
+                                  " :where [[?e :user/firstName ?fname]" +
+                                  "         [?e :user/lastName ?lname]]}");
+
     public static void queryWithMapForm(Database db) {
-        print(query("{:find [[?e ...]]" +
-                    " :in [$ ?fname ?lname]" +
-                    " :where [[?e :user/firstName ?fname]" +
-                    "         [?e :user/lastName ?lname]]}",
-                db, "Stuart", "Smalley"));
+        print(mapForm.query(db, "Stuart", "Smalley"));
     }
 
     public static void main(String[] args) throws IOException {
@@ -0,0 +1,315 @@
+package datomic.samples;
+
+import clojure.java.api.Clojure;
+import clojure.lang.IFn;
+import datomic.Connection;
+import datomic.Peer;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.UUID;
+
+import static datomic.Util.list;
+import static datomic.Util.read;
+import static datomic.samples.Fns.scratchConnection;
+import static datomic.samples.IO.LoadReport;
+import static datomic.samples.IO.transactAllFromResource;
+import static datomic.samples.IO.transactPipelined;
+
+/**
+ * Generates synthetic mbrainz and seattle data at any scale, for load
+ * and query testing without a transactor or the full datasets.
+ *
+ * Output is determined entirely by the seed and the scale. Data is
+ * produced lazily, one transaction at a time, so memory use does not
+ * depend on scale. Entities refer to entities from earlier transactions
+ * by lookup ref rather than tempid, so the transactions can be pipelined.
+ *
+ * Popularity is skewed: a few artists have many releases and most have
+ * one or two, and a few neighborhoods hold most communities.
+ */
+public class DataGenerator {
+    private static final IFn prStr = Clojure.var("clojure.core", "pr-str");
+
+    private static final String[] WORDS = {
+            "Love", "Night", "Blue", "Road", "Jane", "River", "Heart", "Song", "Sun", "Rain", "Home",
+            "Fire", "Dream", "Time", "Girl", "Baby", "Light", "Moon", "Train", "Morning", "City",
+            "Summer", "Street", "Wind", "Soul", "Golden", "Little", "Lonely", "Sweet", "Wild"};
+    private static final Object[] COUNTRIES = keywords(":country/US", ":country/GB", ":country/CA", ":country/DE",
+                                                       ":country/FR", ":country/JP", ":country/BE", ":country/SE");
+    private static final Object[] ARTIST_TYPES = keywords(":artist.type/person", ":artist.type/group", ":artist.type/other");
+    private static final Object[] GENDERS = keywords(":artist.gender/male", ":artist.gender/female", ":artist.gender/other");
+    private static final Object[] FORMATS = keywords(":medium.format/vinyl", ":medium.format/cd", ":medium.format/cassette");
+    private static final Object[] REGIONS = keywords(":region/n", ":region/ne", ":region/e", ":region/se",
+                                                     ":region/s", ":region/sw", ":region/w", ":region/nw");
+    private static final Object[] ORGTYPES = keywords(":community.orgtype/community", ":community.orgtype/commercial",
+                                                      ":community.orgtype/nonprofit", ":community.orgtype/personal");
+    private static final Object[] COMMUNITY_TYPES = keywords(":community.type/email-list", ":community.type/twitter",
+                                                             ":community.type/facebook-page", ":community.type/blog",
+                                                             ":community.type/website", ":community.type/wiki");
+    private static final String[] CATEGORIES = {"community members", "news", "events", "arts", "parks", "history",
+                                                "schools", "neighborhood association", "sports", "food"};
+
+    public static final String MBRAINZ_SCHEMA = "datomic-java-examples/mbrainz-schema.edn";
+    public static final String SEATTLE_SCHEMA = "datomic-java-examples/seattle-schema.edn";
+
+    private final long seed;
+    private final int entitiesPerTx;
+
+    /**
+     * @param seed           determines all generated values
+     * @param entitiesPerTx  top level entities (artists, communities, ...)
+     *                       per generated transaction
+     */
+    public DataGenerator(long seed, int entitiesPerTx) {
+        this.seed = seed;
+        this.entitiesPerTx = entitiesPerTx;
+    }
+
+    public static String artistName(long i) {
+        return "Artist " + i;
+    }
+
+    public UUID artistGid(long i) {
+        return new UUID(seed, i);
+    }
+
+    public UUID releaseGid(long artist, int release) {
+        return new UUID(~seed, artist << 16 | release);
+    }
+
+    /**
+     * Artists, each with their releases, media and tracks. Releases and
+     * tracks occasionally credit a second, usually popular, artist.
+     * Install MBRAINZ_SCHEMA first.
+     */
+    public Iterator<List> mbrainz(final long artists) {
+        final Random random = new Random(seed);
+        return new Generator(artists) {
+            void entity(long a, List tx) {
+                Object artist = Peer.tempid(":db.part/user");
+                Map m = new HashMap();
+                m.put(":db/id", artist);
+                m.put(":artist/gid", artistGid(a));
+                m.put(":artist/name", artistName(a));
+                m.put(":artist/sortName", artistName(a));
+                Object type = pick(random, ARTIST_TYPES);
+                m.put(":artist/type", type);
+                if (type.equals(ARTIST_TYPES[0])) m.put(":artist/gender", pick(random, GENDERS));
+                m.put(":artist/country", COUNTRIES[skewed(random, COUNTRIES.length)]);
+                if (random.nextInt(4) != 0) {
+                    long start = 1940 + random.nextInt(35);
+                    m.put(":artist/startYear", start);
+                    if (random.nextInt(3) == 0) m.put(":artist/endYear", start + 1 + random.nextInt(30));
+                }
+                tx.add(m);
+
+                int releases = 1 + skewed(random, 40);
+                for (int r = 0; r < releases; r++) {
+                    List credits = new ArrayList();
+                    credits.add(artist);
+                    // lookup refs only resolve against earlier transactions
+                    long committed = a - a % entitiesPerTx;
+                    if (committed > 0 && random.nextInt(10) == 0) {
+                        credits.add(list(":artist/gid", artistGid(skewed(random, committed))));
+                    }
+                    List media = new ArrayList();
+                    for (int p = 0, n = 1 + (random.nextInt(8) == 0 ? 1 : 0); p < n; p++) {
+                        List tracks = new ArrayList();
+                        for (int t = 0, count = 6 + random.nextInt(9); t < count; t++) {
+                            Map track = new HashMap();
+                            track.put(":track/name", words(random, 1 + random.nextInt(4)));
+                            track.put(":track/artists", credits);
+                            track.put(":track/position", (long) (t + 1));
+                            track.put(":track/duration", (long) (90000 + random.nextInt(240000) + skewed(random, 600000)));
+                            tracks.add(track);
+                        }
+                        Map medium = new HashMap();
+                        medium.put(":medium/position", (long) (p + 1));
+                        medium.put(":medium/format", pick(random, FORMATS));
+                        medium.put(":medium/trackCount", (long) tracks.size());
+                        medium.put(":medium/tracks", tracks);
+                        media.add(medium);
+                    }
+                    Map release = new HashMap();
+                    release.put(":db/id", Peer.tempid(":db.part/user"));
+                    release.put(":release/gid", releaseGid(a, r));
+                    release.put(":release/name", words(random, 1 + random.nextInt(3)));
+                    release.put(":release/artists", credits);
+                    release.put(":release/country", COUNTRIES[skewed(random, COUNTRIES.length)]);
+                    release.put(":release/year", (long) (1968 + random.nextInt(6)));
+                    release.put(":release/media", media);
+                    tx.add(release);
+                }
+            }
+        };
+    }
+
+    /**
+     * Districts, then neighborhoods, then communities, about half as many
+     * neighborhoods as communities and a seventh as many districts.
+     * Install SEATTLE_SCHEMA first.
+     */
+    public Iterator<List> seattle(final long communities) {
+        final Random random = new Random(seed);
+        final long neighborhoods = Math.max(1, communities / 2);
+        final long districts = Math.max(1, neighborhoods / 7);
+        return new Generator(districts + neighborhoods + communities) {
+            boolean startsTx(long i) {
+                return i == districts || i == districts + neighborhoods;
+            }
+
+            void entity(long i, List tx) {
+                Map m = new HashMap();
+                m.put(":db/id", Peer.tempid(":db.part/user"));
+                if (i < districts) {
+                    m.put(":district/name", "District " + i);
+                    m.put(":district/region", pick(random, REGIONS));
+                } else if (i < districts + neighborhoods) {
+                    long n = i - districts;
+                    m.put(":neighborhood/name", "Neighborhood " + n);
+                    m.put(":neighborhood/district", list(":district/name", "District " + skewed(random, districts)));
+                } else {
+                    long c = i - districts - neighborhoods;
+                    String name = words(random, 2) + " " + c;
+                    m.put(":community/name", name);
+                    m.put(":community/url", "http://example.com/community/" + c);
+                    m.put(":community/neighborhood", list(":neighborhood/name", "Neighborhood " + skewed(random, neighborhoods)));
+                    List categories = new ArrayList();
+                    for (int k = 0, n = 1 + random.nextInt(3); k < n; k++) {
+                        categories.add(CATEGORIES[skewed(random, CATEGORIES.length)]);
+                    }
+                    m.put(":community/category", categories);
+                    m.put(":community/orgtype", pick(random, ORGTYPES));
+                    m.put(":community/type", pick(random, COMMUNITY_TYPES));
+                }
+                tx.add(m);
+            }
+        };
+    }
+
+    /**
+     * Streams txes into conn, keeping up to inFlight transactions outstanding.
+     */
+    public static LoadReport load(Connection conn, Iterator<List> txes, int inFlight) {
+        return transactPipelined(conn, txes, inFlight);
+    }
+
+    /**
+     * Writes txes as edn, one transaction per line, readable by IO.readTxes.
+     */
+    public static void writeEdn(Iterator<List> txes, Writer out) throws IOException {
+        while (txes.hasNext()) {
+            out.write((String) prStr.invoke(txes.next()));
+            out.write('\n');
+        }
+        out.flush();
+    }
+
+    /**
+     * Usage: DataGenerator mbrainz|seattle scale [file.edn]
+     * Without a file, loads the data into a mem database and reports throughput.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("Usage: DataGenerator mbrainz|seattle scale [file.edn]");
+            System.exit(-1);
+        }
+        DataGenerator generator = new DataGenerator(42, 100);
+        boolean mbrainz = args[0].equals("mbrainz");
+        long scale = Long.parseLong(args[1]);
+        Iterator<List> txes = mbrainz ? generator.mbrainz(scale) : generator.seattle(scale);
+        if (args.length > 2) {
+            Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(args[2]), "UTF-8"));
+            try {
+                writeEdn(txes, out);
+            } finally {
+                out.close();
+            }
+        } else {
+            Connection conn = scratchConnection();
+            transactAllFromResource(conn, mbrainz ? MBRAINZ_SCHEMA : SEATTLE_SCHEMA);
+            System.out.println(load(conn, txes, 8));
+        }
+        Peer.shutdown(true);
+    }
+
+    private abstract class Generator implements Iterator<List> {
+        private final long count;
+        private long next;
+
+        Generator(long count) {
+            this.count = count;
+        }
+
+        abstract void entity(long i, List tx);
+
+        /**
+         * True if entity i must not share a transaction with entity i - 1.
+         */
+        boolean startsTx(long i) {
+            return false;
+        }
+
+        public boolean hasNext() {
+            return next < count;
+        }
+
+        public List next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            List tx = new ArrayList();
+            long end = Math.min(count, next + entitiesPerTx);
+            do {
+                entity(next, tx);
+                next++;
+            } while (next < end && !startsTx(next));
+            return tx;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Index in [0, n), strongly favoring small values.
+     */
+    private static int skewed(Random random, int n) {
+        return (int) skewed(random, (long) n);
+    }
+
+    private static long skewed(Random random, long n) {
+        return Math.min(n - 1, (long) (n * Math.pow(random.nextDouble(), 3)));
+    }
+
+    private static Object pick(Random random, Object[] choices) {
+        return choices[random.nextInt(choices.length)];
+    }
+
+    private static String words(Random random, int n) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < n; i++) {
+            if (i > 0) sb.append(' ');
+            sb.append(WORDS[skewed(random, WORDS.length)]);
+        }
+        return sb.toString();
+    }
+
+    private static Object[] keywords(String... idents) {
+        Object[] result = new Object[idents.length];
+        for (int i = 0; i < idents.length; i++) {
+            result[i] = read(idents[i]);
+        }
+        return result;
+    }
+}
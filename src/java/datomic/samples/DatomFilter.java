@@ -0,0 +1,165 @@
+package datomic.samples;
+
+import datomic.Connection;
+import datomic.Database;
+import datomic.Datom;
+import datomic.Peer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.concurrent.BlockingQueue;
+
+import static datomic.Connection.TX_DATA;
+import static datomic.Peer.q;
+import static datomic.Peer.tempid;
+import static datomic.Util.list;
+import static datomic.Util.map;
+import static datomic.samples.Fns.scratchConnection;
+
+/**
+ * Selects datoms by attribute id straight from a datom list, e.g. the
+ * TX_DATA of a transaction report, without running a query. Attribute
+ * ids are resolved once, when the filter is created.
+ */
+public class DatomFilter {
+    public interface Handler {
+        void datom(Datom d);
+    }
+
+    private final long[] attrIds;
+
+    private DatomFilter(long[] attrIds) {
+        this.attrIds = attrIds;
+    }
+
+    /**
+     * @param db     database used to resolve the attributes
+     * @param attrs  attribute idents or ids
+     */
+    public static DatomFilter forAttributes(Database db, Object... attrs) {
+        long[] ids = new long[attrs.length];
+        for (int i = 0; i < attrs.length; i++) {
+            Object id = db.entid(attrs[i]);
+            if (id == null) {
+                throw new IllegalArgumentException("No attribute named " + attrs[i]);
+            }
+            ids[i] = ((Number) id).longValue();
+        }
+        return new DatomFilter(ids);
+    }
+
+    /**
+     * Like forAttributes(db, attrs), resolving the attributes through a
+     * registry instead of the database.
+     *
+     * @param schema  registry used to resolve the attributes
+     * @param attrs   attribute idents or ids
+     */
+    public static DatomFilter forAttributes(SchemaRegistry schema, Object... attrs) {
+        long[] ids = new long[attrs.length];
+        for (int i = 0; i < attrs.length; i++) {
+            ids[i] = schema.attribute(attrs[i]).id;
+        }
+        return new DatomFilter(ids);
+    }
+
+    public boolean matches(Datom d) {
+        long a = ((Number) d.a()).longValue();
+        for (int i = 0; i < attrIds.length; i++) {
+            if (attrIds[i] == a) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Passes each matching datom in datoms to handler, in order.
+     *
+     * @return number of matching datoms
+     */
+    public int each(List<Datom> datoms, Handler handler) {
+        int n = 0;
+        if (datoms instanceof RandomAccess) {
+            for (int i = 0, size = datoms.size(); i < size; i++) {
+                Datom d = datoms.get(i);
+                if (matches(d)) {
+                    handler.datom(d);
+                    n++;
+                }
+            }
+        } else {
+            for (Iterator<Datom> it = datoms.iterator(); it.hasNext(); ) {
+                Datom d = it.next();
+                if (matches(d)) {
+                    handler.datom(d);
+                    n++;
+                }
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Like each, over the TX_DATA of a transaction report.
+     */
+    public int eachInReport(Map txReport, Handler handler) {
+        return each((List<Datom>) txReport.get(TX_DATA), handler);
+    }
+
+    /**
+     * Compares per-report cost of TxReportWatcher's query against a filter.
+     */
+    public static void main(String[] args) throws Exception {
+        Connection conn = scratchConnection();
+        conn.transact(list(map(":db/id", tempid(":db.part/db"),
+                               ":db/ident", ":bench/name",
+                               ":db/valueType", ":db.type/string",
+                               ":db/cardinality", ":db.cardinality/one",
+                               ":db.install/_attribute", ":db.part/db"),
+                           map(":db/id", tempid(":db.part/db"),
+                               ":db/ident", ":bench/n",
+                               ":db/valueType", ":db.type/long",
+                               ":db/cardinality", ":db.cardinality/one",
+                               ":db.install/_attribute", ":db.part/db"))).get();
+        BlockingQueue<Map> queue = conn.txReportQueue();
+        final List<Map> reports = new ArrayList<Map>();
+        for (int tx = 0; tx < 100; tx++) {
+            List data = new ArrayList();
+            for (int i = 0; i < 50; i++) {
+                data.add(map(":db/id", tempid(":db.part/user"), ":bench/name", "e" + tx + "-" + i, ":bench/n", (long) i));
+            }
+            conn.transact(data).get();
+            reports.add(queue.take());
+        }
+        conn.removeTxReportQueue();
+
+        final Object attrid = conn.db().entid(":bench/name");
+        final DatomFilter filter = forAttributes(conn.db(), ":bench/name");
+        final long[] sink = new long[1];
+        final Handler count = new Handler() {
+            public void datom(Datom d) {
+                sink[0]++;
+            }
+        };
+        Bench.report("query per report", Bench.nsPerOp(20, 50, new Runnable() {
+            public void run() {
+                for (int i = 0; i < reports.size(); i++) {
+                    Collection<List<Object>> results = q(TxReportWatcher.byAttribute, reports.get(i).get(TX_DATA), attrid);
+                    sink[0] += results.size();
+                }
+            }
+        }) / reports.size());
+        Bench.report("filter per report", Bench.nsPerOp(20, 50, new Runnable() {
+            public void run() {
+                for (int i = 0; i < reports.size(); i++) {
+                    filter.eachInReport(reports.get(i), count);
+                }
+            }
+        }) / reports.size());
+        System.out.println("datoms matched: " + sink[0]);
+        Peer.shutdown(true);
+    }
+}
@@ -1,14 +1,49 @@
 package datomic.samples;
 
 
+import datomic.Database;
+import datomic.Datom;
 import datomic.Peer;
 
 import datomic.Connection;
+
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static datomic.Connection.DB_AFTER;
+import static datomic.Connection.TEMPIDS;
+import static datomic.Util.list;
+import static datomic.Util.read;
+import static datomic.samples.IO.transactAllFromResource;
 
 public class Fns {
+    private static final Object T = read(":t");
+    private static final Object DATA = read(":data");
+    private static final Object DB_ADD = read(":db/add");
+    private static final Object DB_RETRACT = read(":db/retract");
+    private static final Object TX_INSTANT = read(":db/txInstant");
+    private static final Object TX_PART = read(":db.part/tx");
+
+    /** a seed database, and the t its resources start after */
+    private static class Seed {
+        final Connection conn;
+        final long startT;
+
+        Seed(Connection conn, long startT) {
+            this.conn = conn;
+            this.startT = startT;
+        }
+    }
+
+    private static final ConcurrentHashMap<List<String>, Seed> seeds = new ConcurrentHashMap<List<String>, Seed>();
+
     /**
      * Connection to a fresh in-memory Datomic database.
      * @return
@@ -19,4 +54,94 @@ public class Fns {
         return Peer.connect(uri);
     }
 
+    /**
+     * Connection to a fresh in-memory Datomic database holding the data
+     * from resources. The resources are transacted once per JVM into a
+     * seed database; later calls with the same resources replay the
+     * seed's log instead of re-reading edn.
+     *
+     * Every transaction is replayed, schema, retractions and transaction
+     * metadata included, except :db/txInstant, which must move forward.
+     * Entity ids differ from a direct load.
+     */
+    public static Connection seededConnection(String... resources) {
+        Seed seed = seed(Arrays.asList(resources));
+        Connection conn = scratchConnection();
+        try {
+            replay(seed.conn, seed.startT, conn);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        return conn;
+    }
+
+    private static Seed seed(List<String> resources) {
+        Seed seed = seeds.get(resources);
+        if (seed != null) return seed;
+        synchronized (seeds) {
+            seed = seeds.get(resources);
+            if (seed == null) {
+                Connection conn = scratchConnection();
+                long startT = conn.db().basisT();
+                for (Iterator<String> it = resources.iterator(); it.hasNext(); ) {
+                    transactAllFromResource(conn, it.next());
+                }
+                seed = new Seed(conn, startT);
+                seeds.put(resources, seed);
+            }
+        }
+        return seed;
+    }
+
+    /**
+     * Transacts into target every transaction in source's log after
+     * startT. Entities that existed at startT, i.e. the built in schema,
+     * keep their ids; every later entity is created under a tempid and
+     * later transactions refer to whatever that resolved to.
+     */
+    private static void replay(Connection source, long startT, Connection target) throws Exception {
+        Database db = source.db();
+        Database before = db.asOf(startT);
+        SchemaRegistry schema = new SchemaRegistry(db);
+        long txInstant = ((Number) db.entid(TX_INSTANT)).longValue();
+        // source entity id to target entity id
+        Map<Long, Object> ids = new HashMap<Long, Object>();
+        for (Iterator<Map> it = source.log().txRange(startT + 1, null).iterator(); it.hasNext(); ) {
+            Map entry = it.next();
+            long tx = Peer.toTx(((Number) entry.get(T)).longValue());
+            ids.put(tx, Peer.tempid(TX_PART));
+            Map<Long, Object> created = new HashMap<Long, Object>();
+            List data = new ArrayList();
+            for (Iterator<Datom> datoms = ((Collection<Datom>) entry.get(DATA)).iterator(); datoms.hasNext(); ) {
+                Datom d = datoms.next();
+                long e = ((Number) d.e()).longValue();
+                long a = ((Number) d.a()).longValue();
+                if (e == tx && a == txInstant) continue;
+                Object v = d.v();
+                if (schema.attribute(a).ref()) v = id(db, before, ids, created, ((Number) v).longValue());
+                data.add(list(d.added() ? DB_ADD : DB_RETRACT, id(db, before, ids, created, e),
+                              id(db, before, ids, created, a), v));
+            }
+            Map result = target.transact(data).get();
+            Database after = (Database) result.get(DB_AFTER);
+            for (Iterator<Map.Entry<Long, Object>> c = created.entrySet().iterator(); c.hasNext(); ) {
+                Map.Entry<Long, Object> tempid = c.next();
+                ids.put(tempid.getKey(), Peer.resolveTempid(after, result.get(TEMPIDS), tempid.getValue()));
+            }
+            ids.put(tx, Peer.toTx(after.basisT()));
+        }
+    }
+
+    private static Object id(Database db, Database before, Map<Long, Object> ids, Map<Long, Object> created, long e) {
+        Object id = ids.get(e);
+        if (id != null) return id;
+        if (before.datoms(Database.EAVT, e).iterator().hasNext()) {
+            id = e;
+        } else {
+            id = Peer.tempid(db.ident(Peer.part(e)));
+            created.put(e, id);
+        }
+        ids.put(e, id);
+        return id;
+    }
 }
@@ -1,21 +1,86 @@
 package datomic.samples;
 
 import datomic.Connection;
+import datomic.Database;
+import datomic.ListenableFuture;
+import datomic.Peer;
 import datomic.Util;
+import clojure.java.api.Clojure;
+import clojure.lang.IDeref;
+import clojure.lang.IFn;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.PushbackReader;
 import java.io.Reader;
 import java.net.URI;
 import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.concurrent.ExecutionException;
 
+import static datomic.Connection.DB_AFTER;
+import static datomic.Connection.TEMPIDS;
+import static datomic.Connection.TX_DATA;
+import static datomic.Peer.query;
+import static datomic.Peer.tempid;
+import static datomic.Util.list;
+import static datomic.Util.map;
+import static datomic.Util.read;
+
 public class IO {
+    private static final IFn readEdn;
+    private static final Object EOF = new Object();
+
+    static {
+        Clojure.var("clojure.core", "require").invoke(Clojure.read("clojure.edn"));
+        readEdn = Clojure.var("clojure.edn", "read");
+    }
+
+    /**
+     * Reads transactions lazily, one top level form per call to next(),
+     * so memory use does not grow with the size of the input. Tagged
+     * literals such as #db/id are read with the data readers installed
+     * on the classpath.
+     *
+     * @param reader  edn source, one transaction per top level form
+     * @return        iterator over the transactions in reader
+     */
+    public static Iterator<List> readTxes(Reader reader) {
+        final PushbackReader in = reader instanceof PushbackReader ? (PushbackReader) reader : new PushbackReader(reader);
+        final Object opts = Util.map(read(":eof"), EOF,
+                                     read(":readers"), ((IDeref) Clojure.var("clojure.core", "*data-readers*")).deref());
+        return new Iterator<List>() {
+            private Object next = readEdn.invoke(opts, in);
+
+            public boolean hasNext() {
+                return next != EOF;
+            }
+
+            public List next() {
+                if (next == EOF) throw new NoSuchElementException();
+                List tx = (List) next;
+                next = readEdn.invoke(opts, in);
+                return tx;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
     public static void transactAll(Connection conn, Reader reader) {
-        List<List> txes = Util.readAll(reader);
-        for (java.util.Iterator<List> it = txes.iterator(); it.hasNext(); ) {
+        for (Iterator<List> it = readTxes(reader); it.hasNext(); ) {
             List tx =  it.next();
             try {
                 conn.transact(tx).get();
@@ -25,6 +90,152 @@ public class IO {
         }
     }
 
+    /**
+     * Outcome of a pipelined load.
+     */
+    public static class LoadReport {
+        public final long txCount;
+        public final long datomCount;
+        public final long elapsedNanos;
+
+        public LoadReport(long txCount, long datomCount, long elapsedNanos) {
+            this.txCount = txCount;
+            this.datomCount = datomCount;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public double datomsPerSecond() {
+            return elapsedNanos == 0 ? 0.0 : datomCount * 1e9 / elapsedNanos;
+        }
+
+        public String toString() {
+            return String.format("%d txes, %d datoms in %.1f ms (%.0f datoms/sec)",
+                                 txCount, datomCount, elapsedNanos / 1e6, datomsPerSecond());
+        }
+    }
+
+    /**
+     * Thrown when a transaction fails during a pipelined load.
+     */
+    public static class LoadException extends RuntimeException {
+        /** zero-based position of the failing transaction in the input */
+        public final long txIndex;
+
+        public LoadException(long txIndex, Throwable cause) {
+            super("Transaction " + txIndex + " failed", cause);
+            this.txIndex = txIndex;
+        }
+    }
+
+    /**
+     * Like transactAll, but keeps up to inFlight transactions outstanding
+     * instead of waiting a round trip on each one. Forms are read as they
+     * are submitted, so parsing overlaps with transacting.
+     *
+     * @param conn      a connection
+     * @param reader    edn source, one transaction per top level form
+     * @param inFlight  maximum number of transactions awaiting a result
+     * @return          counts and throughput for the load
+     */
+    public static LoadReport transactAllPipelined(Connection conn, Reader reader, int inFlight) {
+        return transactPipelined(conn, readTxes(reader), inFlight);
+    }
+
+    /**
+     * Submits txes in order, with at most inFlight awaiting a result.
+     * Transactions from a single connection commit in submission order.
+     * On the first failure no further transactions are submitted, and a
+     * LoadException naming the failing index is thrown once the window
+     * drains. Transactions already in flight behind the failing one may
+     * still have committed.
+     */
+    public static LoadReport transactPipelined(Connection conn, Iterator<List> txes, int inFlight) {
+        if (inFlight < 1) {
+            throw new IllegalArgumentException("inFlight must be positive, got " + inFlight);
+        }
+        ArrayDeque<ListenableFuture<Map>> pending = new ArrayDeque<ListenableFuture<Map>>(inFlight);
+        long start = System.nanoTime();
+        long completed = 0;
+        long datoms = 0;
+        LoadException failure = null;
+        while (failure == null && txes.hasNext()) {
+            if (pending.size() == inFlight) {
+                try {
+                    datoms += datomCount(pending.removeFirst(), completed);
+                } catch (LoadException e) {
+                    failure = e;
+                }
+                completed++;
+                if (failure != null) break;
+            }
+            pending.addLast(conn.transactAsync(txes.next()));
+        }
+        while (!pending.isEmpty()) {
+            try {
+                datoms += datomCount(pending.removeFirst(), completed);
+            } catch (LoadException e) {
+                if (failure == null) failure = e;
+            }
+            completed++;
+        }
+        if (failure != null) throw failure;
+        return new LoadReport(completed, datoms, System.nanoTime() - start);
+    }
+
+    /**
+     * Loads reader one chunk at a time, as split by chunker. Each chunk
+     * waits for its predecessor, because tempids shared across chunk
+     * boundaries are replaced by the entity ids they resolved to (via
+     * TEMPIDS) before the next chunk is sent. Resolutions are kept only
+     * until the last chunk of their source transaction, so a tempid
+     * number reused by a later form names a new entity, as it would
+     * without chunking.
+     */
+    public static LoadReport transactAllChunked(Connection conn, Reader reader, TxChunker chunker) {
+        Iterator<List> chunks = chunker.chunks(readTxes(reader));
+        Tempids tempids = new Tempids();
+        long start = System.nanoTime();
+        long index = 0;
+        long datoms = 0;
+        for (; chunks.hasNext(); index++) {
+            List chunk = chunks.next();
+            List data = (List) tempids.resolve(chunk);
+            Map result = await(conn.transactAsync(data), index);
+            datoms += ((Collection) result.get(TX_DATA)).size();
+            if (TxChunker.endsTransaction(chunk)) {
+                tempids.clear();
+            } else {
+                HashSet<Object> seen = new HashSet<Object>();
+                Tempids.collect(data, seen);
+                tempids.record(result, seen);
+            }
+        }
+        return new LoadReport(index, datoms, System.nanoTime() - start);
+    }
+
+    /**
+     * Like transactAllChunked, but submits chunks that share no unresolved
+     * tempids concurrently. See TxBatchGraph.
+     */
+    public static LoadReport transactAllParallel(Connection conn, Reader reader, TxChunker chunker, int inFlight) {
+        return new TxBatchGraph(conn, inFlight, inFlight * 16).transact(chunker.chunks(readTxes(reader)));
+    }
+
+    private static long datomCount(ListenableFuture<Map> f, long txIndex) {
+        return ((Collection) await(f, txIndex).get(TX_DATA)).size();
+    }
+
+    private static Map await(ListenableFuture<Map> f, long txIndex) {
+        try {
+            return f.get();
+        } catch (ExecutionException e) {
+            throw new LoadException(txIndex, e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new LoadException(txIndex, e);
+        }
+    }
+
     public static URL resource(String name) {
         return Thread.currentThread().getContextClassLoader().getResource(name);
     }
@@ -38,4 +249,94 @@ public class IO {
         }
     }
 
+    /**
+     * Transacts resource unless it has already been loaded with the same
+     * content. The first transaction of a load asserts an entity with
+     * :load/resource and :load/sha256, which is unique, so a concurrent
+     * load of the same content fails instead of loading it twice. Each
+     * transaction advances the entity's :load/done with :db.fn/cas, and
+     * the last one sets :load/complete. A load that fails part way is
+     * resumed after its last committed transaction on the next call.
+     *
+     * @return true if the resource was transacted, false if skipped
+     */
+    public static boolean transactResourceOnce(Connection conn, String resource) {
+        if (conn.db().entid(":load/complete") == null) {
+            transactAllFromResource(conn, "datomic-java-examples/load-tracking.edn");
+        }
+        URL url = resource(resource);
+        String hash = sha256(url);
+        Database db = conn.db();
+        Object load = query("[:find ?e . :in $ ?hash :where [?e :load/sha256 ?hash]]", db, hash);
+        long done = 0;
+        if (load != null) {
+            if (Boolean.TRUE.equals(db.entity(load).get(":load/complete"))) return false;
+            done = (Long) db.entity(load).get(":load/done");
+        }
+        try {
+            Reader reader = new InputStreamReader(url.openStream(), "UTF-8");
+            try {
+                Iterator<List> txes = readTxes(reader);
+                for (long i = 0; i < done && txes.hasNext(); i++) {
+                    txes.next();
+                }
+                Object id = load == null ? tempid(":db.part/user") : load;
+                do {
+                    List tx = txes.hasNext() ? new ArrayList(txes.next()) : new ArrayList();
+                    if (load == null) {
+                        tx.add(map(":db/id", id,
+                                   ":load/resource", resource,
+                                   ":load/sha256", hash,
+                                   ":load/done", 1L));
+                    } else {
+                        tx.add(list(":db.fn/cas", load, ":load/done", done, done + 1));
+                    }
+                    if (!txes.hasNext()) tx.add(list(":db/add", id, ":load/complete", true));
+                    Map result = conn.transact(tx).get();
+                    if (load == null) {
+                        load = Peer.resolveTempid((Database) result.get(DB_AFTER), result.get(TEMPIDS), id);
+                        id = load;
+                    }
+                    done++;
+                } while (txes.hasNext());
+            } finally {
+                reader.close();
+            }
+            return true;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return the entity recording a completed load of content with hash, or null
+     */
+    public static Object loadedBy(Database db, String hash) {
+        return query("[:find ?e . :in $ ?hash :where [?e :load/sha256 ?hash] [?e :load/complete true]]", db, hash);
+    }
+
+    public static String sha256(URL url) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            InputStream in = url.openStream();
+            try {
+                byte[] buf = new byte[64 * 1024];
+                for (int n = in.read(buf); n != -1; n = in.read(buf)) {
+                    digest.update(buf, 0, n);
+                }
+            } finally {
+                in.close();
+            }
+            StringBuilder hex = new StringBuilder();
+            byte[] bytes = digest.digest();
+            for (int i = 0; i < bytes.length; i++) {
+                hex.append(String.format("%02x", bytes[i]));
+            }
+            return hex.toString();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
 }
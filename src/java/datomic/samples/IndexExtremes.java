@@ -0,0 +1,266 @@
+package datomic.samples;
+
+import clojure.java.api.Clojure;
+import clojure.lang.IFn;
+import clojure.lang.Keyword;
+import clojure.lang.Symbol;
+import datomic.Connection;
+import datomic.Database;
+import datomic.Datom;
+import datomic.Peer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+
+import static datomic.samples.Fns.scratchConnection;
+import static datomic.samples.IO.transactAllFromResource;
+
+/**
+ * Answers min, max and top-k queries over one indexed attribute from
+ * AVET, which already holds the attribute's values in order, instead of
+ * visiting every value.
+ *
+ * The smallest values are the first datoms in AVET. AVET can only be
+ * read forwards, so the largest value of a numeric or instant attribute
+ * is found by binary search over the value range with seekDatoms: each
+ * probe is one seek, and about 64 probes cover any long, double or date.
+ * The k largest take one search each.
+ *
+ * answer recognizes queries like
+ * [:find (max ?v) . :where [_ :attr ?v]] and
+ * [:find [(min 5 ?v) (max 5 ?v)] :where [?e :attr ?v]], and runs
+ * anything else, or any attribute not in AVET, as a normal query.
+ */
+public class IndexExtremes {
+    private static final Symbol DOT = Symbol.intern(".");
+    private static final Symbol BLANK = Symbol.intern("_");
+    private static final IFn compare = Clojure.var("clojure.core", "compare");
+    private static final Object NOT_EXTREME = new Object();
+
+    /**
+     * True if attr's values are in AVET.
+     */
+    public static boolean indexed(Database db, Object attr) {
+        SchemaRegistry.Attribute a = SchemaRegistry.lookup(db, attr);
+        return a != null && a.avet();
+    }
+
+    /**
+     * @return the smallest value of attr, or null if it has none
+     */
+    public static Object min(Database db, Object attr) {
+        Iterator<Datom> it = db.datoms(Database.AVET, attr).iterator();
+        return it.hasNext() ? it.next().v() : null;
+    }
+
+    /**
+     * Up to k distinct values of attr, smallest first.
+     */
+    public static List min(Database db, Object attr, int k) {
+        List values = new ArrayList();
+        Object last = null;
+        for (Iterator<Datom> it = db.datoms(Database.AVET, attr).iterator(); it.hasNext() && values.size() < k; ) {
+            Object v = it.next().v();
+            if (!v.equals(last)) values.add(v);
+            last = v;
+        }
+        return values;
+    }
+
+    /**
+     * @return the largest value of attr, or null if it has none
+     * @throws IllegalArgumentException if attr's values are not longs, doubles or instants
+     */
+    public static Object max(Database db, Object attr) {
+        Object min = min(db, attr);
+        return min == null ? null : below(db, attr, min, null);
+    }
+
+    /**
+     * Up to k distinct values of attr, largest first.
+     */
+    public static List max(Database db, Object attr, int k) {
+        List values = new ArrayList();
+        Object min = min(db, attr);
+        Object v = min == null ? null : below(db, attr, min, null);
+        while (v != null && values.size() < k) {
+            values.add(v);
+            v = v.equals(min) ? null : below(db, attr, min, v);
+        }
+        return values;
+    }
+
+    /**
+     * Number of datoms of attr holding value.
+     */
+    public static long count(Database db, Object attr, Object value) {
+        long n = 0;
+        for (Iterator<Datom> it = db.datoms(Database.AVET, attr, value).iterator(); it.hasNext(); it.next()) {
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Binary search for the largest value of attr that is less than
+     * bound, or the largest value if bound is null.
+     *
+     * @param min  the smallest value of attr, which is less than bound
+     */
+    private static Object below(Database db, Object attr, Object min, Object bound) {
+        long attrId = ((Number) db.entid(attr)).longValue();
+        long lo = toOrdered(min);
+        long hi = bound != null ? toOrdered(bound) - 1
+                : min instanceof Double ? toOrdered(Double.POSITIVE_INFINITY) : Long.MAX_VALUE;
+        Object found = min;
+        // invariant: the first value at or after lo is found, and is below bound
+        while (lo < hi) {
+            long range = hi - lo;
+            long mid = lo + (range >>> 1) + (range & 1);
+            Object v = first(db, attrId, fromOrdered(mid, min));
+            if (v != null && (bound == null || ((Number) compare.invoke(v, bound)).intValue() < 0)) {
+                lo = mid;
+                found = v;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @return the first value of attr at or after probe, or null
+     */
+    private static Object first(Database db, long attrId, Object probe) {
+        Iterator<Datom> it = db.seekDatoms(Database.AVET, attrId, probe).iterator();
+        if (!it.hasNext()) return null;
+        Datom d = it.next();
+        return ((Number) d.a()).longValue() == attrId ? d.v() : null;
+    }
+
+    /**
+     * Maps a value to a long with the same order.
+     */
+    private static long toOrdered(Object v) {
+        if (v instanceof Long) return (Long) v;
+        if (v instanceof Date) return ((Date) v).getTime();
+        if (v instanceof Double) {
+            long bits = Double.doubleToLongBits((Double) v);
+            return bits < 0 ? bits ^ Long.MAX_VALUE : bits;
+        }
+        throw new IllegalArgumentException("Cannot search values of type " + v.getClass().getName());
+    }
+
+    /**
+     * Inverse of toOrdered, producing a value of the same type as like.
+     */
+    private static Object fromOrdered(long l, Object like) {
+        if (like instanceof Long) return l;
+        if (like instanceof Date) return new Date(l);
+        return Double.longBitsToDouble(l < 0 ? l ^ Long.MAX_VALUE : l);
+    }
+
+    /**
+     * Runs query from the index if it is a min/max query over one
+     * indexed attribute, or with Peer.query if not.
+     */
+    public static <T> T answer(Object query, Object... inputs) {
+        PreparedQuery pq = PreparedQuery.prepare(query);
+        Object result = fromIndex(pq, inputs);
+        return (T) (result != NOT_EXTREME ? result : pq.query(inputs));
+    }
+
+    /**
+     * @return the query's result, or NOT_EXTREME
+     */
+    private static Object fromIndex(PreparedQuery pq, Object[] inputs) {
+        if (inputs.length != 1 || !(inputs[0] instanceof Database) || pq.in().size() != 1
+            || pq.where().size() != 1 || !(pq.where().get(0) instanceof List)) {
+            return NOT_EXTREME;
+        }
+        Database db = (Database) inputs[0];
+        List pattern = (List) pq.where().get(0);
+        if (pattern.size() != 3 || !(pattern.get(1) instanceof Keyword) || !isVariable(pattern.get(2))) return NOT_EXTREME;
+        if (!isVariable(pattern.get(0)) && !BLANK.equals(pattern.get(0))) return NOT_EXTREME;
+        Object attr = pattern.get(1);
+        Object v = pattern.get(2);
+        if (db.entid(attr) == null || !indexed(db, attr)) return NOT_EXTREME;
+
+        List find = pq.find();
+        boolean scalar = find.size() == 2 && DOT.equals(find.get(1));
+        boolean tuple = find.size() == 1 && find.get(0) instanceof List && ((List) find.get(0)).get(0) instanceof List;
+        List elements = scalar ? find.subList(0, 1) : tuple ? (List) find.get(0) : find;
+        List row = new ArrayList();
+        for (Iterator it = elements.iterator(); it.hasNext(); ) {
+            Object element = it.next();
+            if (!(element instanceof List) || ((List) element).isEmpty()) return NOT_EXTREME;
+            List expr = (List) element;
+            Object fn = expr.get(0);
+            boolean min = Symbol.intern("min").equals(fn);
+            if (!min && !Symbol.intern("max").equals(fn)) return NOT_EXTREME;
+            if (!v.equals(expr.get(expr.size() - 1))) return NOT_EXTREME;
+            try {
+                if (expr.size() == 2) {
+                    Object value = min ? min(db, attr) : max(db, attr);
+                    if (value == null) return scalar || tuple ? null : Collections.emptySet();
+                    row.add(value);
+                } else if (expr.size() == 3 && expr.get(1) instanceof Number) {
+                    if (!pq.with().isEmpty()) return NOT_EXTREME;
+                    int k = ((Number) expr.get(1)).intValue();
+                    List values = min ? min(db, attr, k) : max(db, attr, k);
+                    if (values.isEmpty()) return scalar || tuple ? null : Collections.emptySet();
+                    row.add(values);
+                } else {
+                    return NOT_EXTREME;
+                }
+            } catch (IllegalArgumentException e) {
+                // max over strings and other types without a searchable order
+                return NOT_EXTREME;
+            }
+        }
+        if (scalar) return row.get(0);
+        if (tuple) return row;
+        return Collections.singleton(row);
+    }
+
+    private static boolean isVariable(Object o) {
+        return o instanceof Symbol && ((Symbol) o).getName().startsWith("?");
+    }
+
+    /**
+     * Compares query and index answers for track duration extremes.
+     * Usage: IndexExtremes [artists]
+     */
+    public static void main(String[] args) {
+        int artists = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        Connection conn = scratchConnection();
+        transactAllFromResource(conn, DataGenerator.MBRAINZ_SCHEMA);
+        DataGenerator.load(conn, new DataGenerator(42, 100).mbrainz(artists), 8);
+        final Database db = conn.db();
+        System.out.println(Peer.query("[:find (count ?d) . :with ?t :where [?t :track/duration ?d]]", db)
+                           + " track/duration datoms");
+
+        String[] queries = {"[:find (max ?d) . :where [_ :track/duration ?d]]",
+                            "[:find (min ?d) . :where [_ :track/duration ?d]]",
+                            "[:find [(min 5 ?d) (max 5 ?d)] :where [?t :track/duration ?d]]"};
+        for (int i = 0; i < queries.length; i++) {
+            final PreparedQuery pq = PreparedQuery.prepare(queries[i]);
+            System.out.println(queries[i]);
+            System.out.println("  query " + pq.query(db) + ", index " + answer(pq.form(), db));
+            Bench.report("  query", Bench.nsPerOp(2, 5, new Runnable() {
+                public void run() {
+                    pq.query(db);
+                }
+            }));
+            Bench.report("  index", Bench.nsPerOp(1000, 10000, new Runnable() {
+                public void run() {
+                    answer(pq.form(), db);
+                }
+            }));
+        }
+        Peer.shutdown(true);
+    }
+}
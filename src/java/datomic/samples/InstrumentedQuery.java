@@ -0,0 +1,471 @@
+package datomic.samples;
+
+import clojure.java.api.Clojure;
+import clojure.lang.IFn;
+import clojure.lang.Keyword;
+import clojure.lang.Symbol;
+import datomic.Connection;
+import datomic.Database;
+import datomic.Peer;
+import datomic.QueryRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static datomic.samples.Fns.scratchConnection;
+import static datomic.samples.IO.transactAllFromResource;
+
+/**
+ * Runs queries through Peer.query while recording, per query shape, a
+ * latency histogram, call, error, row and input item counts, and the last
+ * basis t queried. Calls slower than a threshold are logged with their inputs.
+ * Only calls that return go into the histogram, so canceled and failed
+ * calls, which stop at arbitrary points, do not drag its percentiles
+ * toward a timeout.
+ *
+ * A query's shape is its form with literal values in :where replaced by
+ * ?_, so a query built by pasting values into its text is recorded once
+ * rather than once per value. Each shape has a short fingerprint to
+ * search logs by.
+ */
+public class InstrumentedQuery {
+    private static final Logger log = LoggerFactory.getLogger(InstrumentedQuery.class);
+    private static final IFn prStr = Clojure.var("clojure.core", "pr-str");
+    private static final Symbol LITERAL = Symbol.intern("?_");
+
+    /**
+     * Latency histogram with buckets about 12% wide, from a microsecond
+     * up. Safe to record into from many threads.
+     */
+    public static class Histogram {
+        private static final int SUB_BUCKETS = 8;
+        private final AtomicLongArray counts = new AtomicLongArray(16 + 60 * SUB_BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong totalMicros = new AtomicLong();
+        private final AtomicLong maxMicros = new AtomicLong();
+
+        public void record(long micros) {
+            counts.incrementAndGet(bucket(Math.max(0, micros)));
+            count.incrementAndGet();
+            totalMicros.addAndGet(micros);
+            for (long max = maxMicros.get(); micros > max && !maxMicros.compareAndSet(max, micros); ) {
+                max = maxMicros.get();
+            }
+        }
+
+        public long count() {
+            return count.get();
+        }
+
+        public long maxMicros() {
+            return maxMicros.get();
+        }
+
+        public double meanMicros() {
+            long n = count.get();
+            return n == 0 ? 0 : (double) totalMicros.get() / n;
+        }
+
+        /**
+         * @param q  between 0 and 1
+         * @return upper bound of the bucket holding the q-quantile, in microseconds
+         */
+        public long percentileMicros(double q) {
+            return percentileMicros(q, null);
+        }
+
+        /**
+         * Like percentileMicros(q), over the samples of this and other together.
+         */
+        long percentileMicros(double q, Histogram other) {
+            long n = count.get() + (other == null ? 0 : other.count.get());
+            if (n == 0) return 0;
+            long max = Math.max(maxMicros.get(), other == null ? 0 : other.maxMicros.get());
+            long target = Math.max(1, (long) Math.ceil(q * n));
+            long seen = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                seen += counts.get(i) + (other == null ? 0 : other.counts.get(i));
+                if (seen >= target) return Math.min(upperBound(i), max);
+            }
+            return max;
+        }
+
+        private static int bucket(long v) {
+            if (v < 16) return (int) v;
+            int exponent = 63 - Long.numberOfLeadingZeros(v);
+            int sub = (int) (v >>> (exponent - 3)) & (SUB_BUCKETS - 1);
+            return 16 + (exponent - 4) * SUB_BUCKETS + sub;
+        }
+
+        private static long upperBound(int bucket) {
+            if (bucket < 16) return bucket;
+            int exponent = (bucket - 16) / SUB_BUCKETS + 4;
+            int sub = (bucket - 16) % SUB_BUCKETS;
+            return ((long) (SUB_BUCKETS + sub + 1) << (exponent - 3)) - 1;
+        }
+    }
+
+    /**
+     * Everything recorded for one query shape.
+     */
+    public static class Shape {
+        /** calls per window of recent latencies */
+        public static final int WINDOW_CALLS = 256;
+
+        public final String fingerprint;
+        /** the normalized query */
+        public final String text;
+        /** latency of the calls that returned */
+        public final Histogram latency = new Histogram();
+        private final AtomicLong calls = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+        private final AtomicLong timeouts = new AtomicLong();
+        private final AtomicLong rows = new AtomicLong();
+        private final AtomicLong inputItems = new AtomicLong();
+        private final AtomicLong maxInputItems = new AtomicLong();
+        private volatile long lastBasisT = -1;
+        private volatile Histogram recent = new Histogram();
+        private volatile Histogram previous = new Histogram();
+
+        Shape(String fingerprint, String text) {
+            this.fingerprint = fingerprint;
+            this.text = text;
+        }
+
+        public long calls() {
+            return calls.get();
+        }
+
+        public long errors() {
+            return errors.get();
+        }
+
+        /**
+         * Calls canceled by their timeout, or refused because their budget
+         * was spent, which are also counted as errors.
+         */
+        public long timeouts() {
+            return timeouts.get();
+        }
+
+        public double timeoutRate() {
+            long calls = calls();
+            return calls == 0 ? 0 : (double) timeouts.get() / calls;
+        }
+
+        public long rows() {
+            return rows.get();
+        }
+
+        /**
+         * Input items over all calls: each collection input counts its
+         * size, and each other input except databases counts one.
+         */
+        public long inputItems() {
+            return inputItems.get();
+        }
+
+        public double meanInputItems() {
+            long calls = calls();
+            return calls == 0 ? 0 : (double) inputItems.get() / calls;
+        }
+
+        public long maxInputItems() {
+            return maxInputItems.get();
+        }
+
+        public long lastBasisT() {
+            return lastBasisT;
+        }
+
+        /**
+         * Quantile of the latencies of the last WINDOW_CALLS to twice that
+         * many calls that returned or were canceled. A canceled call counts
+         * at the time it ran before being canceled, a lower bound on its
+         * real latency, so a timeout set from this quantile rises when
+         * calls keep being canceled, and falls again as old windows age out.
+         */
+        public long recentPercentileMicros(double q) {
+            return recent.percentileMicros(q, previous);
+        }
+
+        /**
+         * Calls in the windows recentPercentileMicros reads.
+         */
+        public long recentCount() {
+            return recent.count() + previous.count();
+        }
+
+        private void recordRecent(long micros) {
+            Histogram h = recent;
+            h.record(micros);
+            if (h.count() == WINDOW_CALLS) {
+                previous = h;
+                recent = new Histogram();
+            }
+        }
+
+        /**
+         * Counts a call that timed out without running.
+         */
+        void refused() {
+            calls.incrementAndGet();
+            errors.incrementAndGet();
+            timeouts.incrementAndGet();
+        }
+
+        public String toString() {
+            return String.format("%s %8d calls %6d errors %6d timeouts %10.0f mean %8d p50 %8d p99 %8d max (us)"
+                                 + " %8.1f mean %6d max inputs  %s",
+                                 fingerprint, calls(), errors(), timeouts(), latency.meanMicros(),
+                                 latency.percentileMicros(0.5), latency.percentileMicros(0.99),
+                                 latency.maxMicros(), meanInputItems(), maxInputItems(), text);
+        }
+    }
+
+    /** forms remembered, so each needs normalizing only once while it stays in use */
+    private static final int FORM_CACHE_SIZE = 1024;
+
+    private final long slowMicros;
+    private final Map<Object, Shape> byForm = new LinkedHashMap<Object, Shape>(64, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<Object, Shape> eldest) {
+            return size() > FORM_CACHE_SIZE;
+        }
+    };
+    private final ConcurrentHashMap<String, Shape> byFingerprint = new ConcurrentHashMap<String, Shape>();
+
+    /**
+     * @param slowMillis  calls taking at least this long are logged
+     */
+    public InstrumentedQuery(long slowMillis) {
+        this.slowMicros = TimeUnit.MILLISECONDS.toMicros(slowMillis);
+    }
+
+    public <T> T query(Object query, Object... inputs) {
+        PreparedQuery pq = PreparedQuery.prepare(query);
+        return run(pq, shapeOf(pq), -1, null, inputs);
+    }
+
+    /**
+     * Like query, cancelling the query after timeoutMillis.
+     *
+     * @throws QueryTimeoutException if the query is canceled
+     */
+    public <T> T query(long timeoutMillis, Object query, Object... inputs) {
+        PreparedQuery pq = PreparedQuery.prepare(query);
+        return run(pq, shapeOf(pq), timeoutMillis, null, inputs);
+    }
+
+    public Collection<List<Object>> q(Object query, Object... inputs) {
+        PreparedQuery pq = PreparedQuery.prepare(query);
+        return run(pq, shapeOf(pq), -1, null, inputs);
+    }
+
+    /**
+     * A budget for one request's queries to run through this.
+     */
+    public QueryBudget budget(long budgetMillis) {
+        return new QueryBudget(this, budgetMillis);
+    }
+
+    <T> T run(PreparedQuery pq, Shape shape, long timeoutMillis, QueryBudget budget, Object[] inputs) {
+        long items = inputItems(inputs);
+        shape.inputItems.addAndGet(items);
+        for (long max = shape.maxInputItems.get(); items > max && !shape.maxInputItems.compareAndSet(max, items); ) {
+            max = shape.maxInputItems.get();
+        }
+        long start = System.nanoTime();
+        T result = null;
+        boolean failed = true;
+        try {
+            result = timeoutMillis < 0 ? (T) Peer.query(pq.form(), inputs)
+                    : (T) Peer.query(QueryRequest.create(pq.form(), inputs).timeout(timeoutMillis));
+            failed = false;
+            return result;
+        } catch (RuntimeException e) {
+            if (timeoutMillis >= 0 && QueryTimeoutException.isCancellation(e)) {
+                shape.timeouts.incrementAndGet();
+                shape.recordRecent(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+                throw new QueryTimeoutException(shape.fingerprint, timeoutMillis,
+                                                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), budget, e);
+            }
+            throw e;
+        } finally {
+            long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+            shape.calls.incrementAndGet();
+            if (failed) {
+                shape.errors.incrementAndGet();
+            } else {
+                shape.latency.record(micros);
+                shape.recordRecent(micros);
+            }
+            long rows = failed ? 0 : result instanceof Collection ? ((Collection) result).size() : result == null ? 0 : 1;
+            shape.rows.addAndGet(rows);
+            for (int i = 0; i < inputs.length; i++) {
+                if (inputs[i] instanceof Database) {
+                    shape.lastBasisT = ((Database) inputs[i]).basisT();
+                    break;
+                }
+            }
+            if (micros >= slowMicros && log.isWarnEnabled()) {
+                log.warn("slow query {} took {} ms{}, {} rows, inputs {}: {}", shape.fingerprint, micros / 1000,
+                         failed ? " and failed" : "", rows, describe(inputs), shape.text);
+            }
+        }
+    }
+
+    /**
+     * The shape a query is recorded under, created on first use.
+     */
+    public Shape shapeOf(Object query) {
+        PreparedQuery pq = PreparedQuery.prepare(query);
+        Shape shape;
+        synchronized (byForm) {
+            shape = byForm.get(pq.form());
+        }
+        if (shape == null) {
+            String text = (String) prStr.invoke(normalize(pq.form()));
+            String fingerprint = fingerprint(text);
+            shape = byFingerprint.get(fingerprint);
+            if (shape == null) {
+                shape = new Shape(fingerprint, text);
+                Shape existing = byFingerprint.putIfAbsent(fingerprint, shape);
+                if (existing != null) shape = existing;
+            }
+            synchronized (byForm) {
+                byForm.put(pq.form(), shape);
+            }
+        }
+        return shape;
+    }
+
+    /**
+     * @return the shape with this fingerprint, or null if none has run
+     */
+    public Shape shape(String fingerprint) {
+        return byFingerprint.get(fingerprint);
+    }
+
+    /**
+     * Every shape recorded, slowest p99 first.
+     */
+    public List<Shape> shapes() {
+        List<Shape> shapes = new ArrayList<Shape>(byFingerprint.values());
+        Collections.sort(shapes, new Comparator<Shape>() {
+            public int compare(Shape a, Shape b) {
+                long pa = a.latency.percentileMicros(0.99);
+                long pb = b.latency.percentileMicros(0.99);
+                return pa > pb ? -1 : pa == pb ? 0 : 1;
+            }
+        });
+        return shapes;
+    }
+
+    public String report() {
+        StringBuilder sb = new StringBuilder();
+        for (Iterator<Shape> it = shapes().iterator(); it.hasNext(); ) {
+            sb.append(it.next()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * The query form with literal values in :where clauses replaced by ?_.
+     */
+    static Object normalize(Object form) {
+        if (form instanceof Map) {
+            Map m = new LinkedHashMap((Map) form);
+            Object where = m.get(PreparedQuery.WHERE);
+            if (where != null) m.put(PreparedQuery.WHERE, literals(where));
+            return m;
+        }
+        List normalized = new ArrayList();
+        boolean inWhere = false;
+        for (Iterator it = ((List) form).iterator(); it.hasNext(); ) {
+            Object o = it.next();
+            if (o instanceof Keyword) inWhere = o.equals(PreparedQuery.WHERE);
+            normalized.add(inWhere && !(o instanceof Keyword) ? literals(o) : o);
+        }
+        return normalized;
+    }
+
+    private static Object literals(Object form) {
+        if (form instanceof List) {
+            List l = new ArrayList();
+            for (Iterator it = ((List) form).iterator(); it.hasNext(); ) {
+                l.add(literals(it.next()));
+            }
+            return l;
+        }
+        if (form instanceof Symbol || form instanceof Keyword) return form;
+        return LITERAL;
+    }
+
+    /**
+     * 64 bit FNV-1a hash of a normalized query, in hex.
+     */
+    private static String fingerprint(String text) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < text.length(); i++) {
+            h = (h ^ text.charAt(i)) * 0x100000001b3L;
+        }
+        return String.format("%016x", h);
+    }
+
+    private static long inputItems(Object[] inputs) {
+        long n = 0;
+        for (int i = 0; i < inputs.length; i++) {
+            Object in = inputs[i];
+            if (in instanceof Collection) n += ((Collection) in).size();
+            else if (!(in instanceof Database)) n++;
+        }
+        return n;
+    }
+
+    private static String describe(Object[] inputs) {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < inputs.length; i++) {
+            if (i > 0) sb.append(' ');
+            Object in = inputs[i];
+            if (in instanceof Database) sb.append("db@").append(((Database) in).basisT());
+            else if (in instanceof Collection) sb.append(((Collection) in).size()).append(" items");
+            else sb.append(in);
+        }
+        return sb.append(']').toString();
+    }
+
+    /**
+     * Runs a mix of fast and slow query shapes and prints their latencies.
+     */
+    public static void main(String[] args) {
+        Connection conn = scratchConnection();
+        transactAllFromResource(conn, DataGenerator.MBRAINZ_SCHEMA);
+        DataGenerator.load(conn, new DataGenerator(42, 100).mbrainz(2000), 8);
+        Database db = conn.db();
+        InstrumentedQuery queries = new InstrumentedQuery(50);
+        for (int i = 0; i < 200; i++) {
+            String name = DataGenerator.artistName(i);
+            queries.query("[:find ?e . :in $ ?name :where [?e :artist/name ?name]]", db, name);
+            // one shape however many names are pasted in
+            queries.query("[:find ?e . :where [?e :artist/name \"" + name + "\"]]", db);
+            if (i % 20 == 0) {
+                queries.query("[:find ?title :in $ ?name :where [?t :track/name ?title] [?t :track/artists ?a]" +
+                              " [?a :artist/name ?name]]", db, name);
+            }
+        }
+        System.out.print(queries.report());
+        Peer.shutdown(true);
+    }
+}
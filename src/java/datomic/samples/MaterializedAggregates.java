@@ -0,0 +1,255 @@
+package datomic.samples;
+
+import clojure.java.api.Clojure;
+import clojure.lang.IFn;
+import datomic.Connection;
+import datomic.Database;
+import datomic.Datom;
+import datomic.Peer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static datomic.Connection.DB_AFTER;
+import static datomic.Connection.DB_BEFORE;
+import static datomic.Util.list;
+import static datomic.Util.map;
+import static datomic.samples.Fns.scratchConnection;
+import static datomic.samples.IO.transactAllFromResource;
+
+/**
+ * Aggregates over every value of an attribute, computed once and then
+ * kept current from transaction reports, so reading one costs a field
+ * read rather than a query.
+ *
+ * Aggregates range over every datom of the attribute, as a query would
+ * with :with ?e. Assertions and retractions adjust COUNT, SUM and
+ * COUNT_DISTINCT directly. MIN and MAX track how many datoms hold the
+ * current extreme, and are recomputed from the database only when the
+ * last of those is retracted, with IndexExtremes if the attribute is in
+ * AVET.
+ *
+ * Reports must arrive in order. If one is missed (e.g. a DROP
+ * subscription fell behind) every aggregate is recomputed from the next
+ * report's db-after.
+ */
+public class MaterializedAggregates implements TxReportDispatcher.Subscriber {
+    public enum Kind { COUNT, SUM, MIN, MAX, COUNT_DISTINCT }
+
+    private static final IFn add = Clojure.var("clojure.core", "+");
+    private static final IFn subtract = Clojure.var("clojure.core", "-");
+    private static final IFn compare = Clojure.var("clojure.core", "compare");
+
+    public class Aggregate {
+        public final String name;
+        public final Kind kind;
+        public final Object attr;
+        private final long attrId;
+        /** published after each report, so readers never see one half applied */
+        private volatile Object value;
+        private Object current;
+        /** for MIN and MAX, datoms holding value */
+        private long extremeCount;
+        /** for COUNT_DISTINCT, datoms holding each value */
+        private Map<Object, Long> distinct;
+        private boolean stale;
+
+        private Aggregate(String name, Kind kind, Object attr, long attrId) {
+            this.name = name;
+            this.kind = kind;
+            this.attr = attr;
+            this.attrId = attrId;
+        }
+
+        /**
+         * The current value: a count, a sum, or the extreme value
+         * (null if the attribute has no datoms).
+         */
+        public Object value() {
+            return value;
+        }
+
+        public String toString() {
+            return name + " = " + value;
+        }
+
+        private void compute(Database db) {
+            current = kind == Kind.COUNT || kind == Kind.COUNT_DISTINCT || kind == Kind.SUM ? (Object) 0L : null;
+            extremeCount = 0;
+            distinct = kind == Kind.COUNT_DISTINCT ? new HashMap<Object, Long>() : null;
+            stale = false;
+            if ((kind == Kind.MIN || kind == Kind.MAX) && IndexExtremes.indexed(db, attrId)) {
+                try {
+                    current = kind == Kind.MIN ? IndexExtremes.min(db, attrId) : IndexExtremes.max(db, attrId);
+                    extremeCount = current == null ? 0 : IndexExtremes.count(db, attrId, current);
+                    value = current;
+                    return;
+                } catch (IllegalArgumentException e) {
+                    // no searchable order for max; scan instead
+                }
+            }
+            for (Iterator<Datom> it = db.datoms(Database.AEVT, attrId).iterator(); it.hasNext(); ) {
+                apply(it.next().v(), true);
+            }
+            value = current;
+        }
+
+        private void apply(Object v, boolean added) {
+            switch (kind) {
+                case COUNT:
+                    current = (Long) current + (added ? 1 : -1);
+                    break;
+                case SUM:
+                    current = added ? add.invoke(current, v) : subtract.invoke(current, v);
+                    break;
+                case COUNT_DISTINCT:
+                    Long n = distinct.get(v);
+                    long count = (n == null ? 0 : n) + (added ? 1 : -1);
+                    if (count == 0) distinct.remove(v);
+                    else distinct.put(v, count);
+                    current = (long) distinct.size();
+                    break;
+                case MIN:
+                case MAX:
+                    int c = current == null ? 0 : ((Number) compare.invoke(v, current)).intValue();
+                    if (kind == Kind.MAX) c = -c;
+                    if (added) {
+                        if (current == null || c < 0) {
+                            current = v;
+                            extremeCount = 1;
+                        } else if (c == 0) {
+                            extremeCount++;
+                        }
+                    } else if (c == 0 && --extremeCount == 0) {
+                        stale = true;
+                    }
+                    break;
+            }
+        }
+    }
+
+    private final Map<String, Aggregate> aggregates = new LinkedHashMap<String, Aggregate>();
+    private DatomFilter filter;
+    private long basisT;
+
+    /**
+     * @param db  database aggregates are registered against
+     */
+    public MaterializedAggregates(Database db) {
+        this.basisT = db.basisT();
+        this.filter = DatomFilter.forAttributes(db);
+    }
+
+    /**
+     * Computes an aggregate over attr as of db, which must be the
+     * database this instance was created with or one it has since been
+     * brought up to date with.
+     */
+    public synchronized Aggregate register(Database db, String name, Kind kind, Object attr) {
+        if (db.basisT() != basisT) {
+            throw new IllegalArgumentException("Database is at t " + db.basisT() + ", aggregates are at t " + basisT);
+        }
+        if (aggregates.containsKey(name)) {
+            throw new IllegalArgumentException("Aggregate " + name + " already registered");
+        }
+        Object id = db.entid(attr);
+        if (id == null) {
+            throw new IllegalArgumentException("No attribute named " + attr);
+        }
+        Aggregate a = new Aggregate(name, kind, attr, ((Number) id).longValue());
+        a.compute(db);
+        aggregates.put(name, a);
+        List<Object> attrs = new ArrayList<Object>();
+        for (Iterator<Aggregate> it = aggregates.values().iterator(); it.hasNext(); ) {
+            attrs.add(it.next().attrId);
+        }
+        filter = DatomFilter.forAttributes(db, attrs.toArray());
+        return a;
+    }
+
+    /**
+     * @return the current value of the named aggregate
+     */
+    public Object get(String name) {
+        Aggregate a;
+        synchronized (this) {
+            a = aggregates.get(name);
+        }
+        if (a == null) {
+            throw new IllegalArgumentException("No aggregate named " + name);
+        }
+        return a.value();
+    }
+
+    public synchronized List<Aggregate> aggregates() {
+        return new ArrayList<Aggregate>(aggregates.values());
+    }
+
+    public synchronized long basisT() {
+        return basisT;
+    }
+
+    public synchronized void report(Map txReport) {
+        long before = ((Database) txReport.get(DB_BEFORE)).basisT();
+        Database after = (Database) txReport.get(DB_AFTER);
+        if (after.basisT() <= basisT) return;
+        if (before != basisT) {
+            for (Iterator<Aggregate> it = aggregates.values().iterator(); it.hasNext(); ) {
+                it.next().compute(after);
+            }
+            basisT = after.basisT();
+            return;
+        }
+        filter.eachInReport(txReport, new DatomFilter.Handler() {
+            public void datom(Datom d) {
+                long a = ((Number) d.a()).longValue();
+                for (Iterator<Aggregate> it = aggregates.values().iterator(); it.hasNext(); ) {
+                    Aggregate agg = it.next();
+                    if (agg.attrId == a) agg.apply(d.v(), d.added());
+                }
+            }
+        });
+        for (Iterator<Aggregate> it = aggregates.values().iterator(); it.hasNext(); ) {
+            Aggregate agg = it.next();
+            if (agg.stale) agg.compute(after);
+            agg.value = agg.current;
+        }
+        basisT = after.basisT();
+    }
+
+    /**
+     * Keeps aggregates over generated mbrainz data current through a
+     * batch of edits, and checks them against queries.
+     */
+    public static void main(String[] args) throws Exception {
+        Connection conn = scratchConnection();
+        transactAllFromResource(conn, DataGenerator.MBRAINZ_SCHEMA);
+        DataGenerator.load(conn, new DataGenerator(42, 100).mbrainz(500), 8);
+        Database db = conn.db();
+        MaterializedAggregates aggregates = new MaterializedAggregates(db);
+        aggregates.register(db, "tracks", Kind.COUNT, ":track/duration");
+        aggregates.register(db, "total duration", Kind.SUM, ":track/duration");
+        aggregates.register(db, "longest", Kind.MAX, ":track/duration");
+        aggregates.register(db, "shortest", Kind.MIN, ":track/duration");
+        aggregates.register(db, "release years", Kind.COUNT_DISTINCT, ":release/year");
+
+        // retract the longest track's duration, and add a new year
+        Object longest = Peer.query("[:find ?t . :in $ ?d :where [?t :track/duration ?d]]", db, aggregates.get("longest"));
+        aggregates.report(conn.transact(list(list(":db/retract", longest, ":track/duration", aggregates.get("longest")))).get());
+        aggregates.report(conn.transact(list(map(":db/id", Peer.tempid(":db.part/user"),
+                                                 ":release/name", "New",
+                                                 ":release/year", 2024L))).get());
+        db = conn.db();
+        System.out.println(aggregates.aggregates());
+        System.out.println("tracks " + Peer.query("[:find (count ?d) . :with ?t :where [?t :track/duration ?d]]", db)
+                           + ", total duration " + Peer.query("[:find (sum ?d) . :with ?t :where [?t :track/duration ?d]]", db)
+                           + ", longest " + Peer.query("[:find (max ?d) . :where [_ :track/duration ?d]]", db)
+                           + ", shortest " + Peer.query("[:find (min ?d) . :where [_ :track/duration ?d]]", db)
+                           + ", release years " + Peer.query("[:find (count-distinct ?y) . :where [_ :release/year ?y]]", db));
+        Peer.shutdown(true);
+    }
+}
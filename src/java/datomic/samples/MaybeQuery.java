@@ -2,7 +2,10 @@ package datomic.samples;
 
 import datomic.Connection;
 import datomic.Database;
+import datomic.Datom;
+import datomic.Entity;
 
+import java.lang.ref.WeakReference;
 import java.util.*;
 
 import static datomic.Peer.*;
@@ -10,12 +13,44 @@ import static datomic.Util.read;
 import static datomic.samples.Fns.scratchConnection;
 import static datomic.samples.Schema.CARDINALITY_MANY;
 import static datomic.samples.Schema.CARDINALITY_ONE;
-import static datomic.samples.Schema.cardinality;
 
 public class MaybeQuery {
+    private static final Object CARDINALITY = read(":db/cardinality");
 
     /**
-     * Function intended for use inside a Datomic query
+     * The last cardinality looked up on a thread. A query calls maybe
+     * with the same database and attribute row after row, and a database
+     * value never changes, so the answer holds until either differs.
+     */
+    private static class LastCardinality {
+        final WeakReference<Database> db;
+        final Object attr;
+        final boolean many;
+
+        LastCardinality(Database db, Object attr, boolean many) {
+            this.db = new WeakReference<Database>(db);
+            this.attr = attr;
+            this.many = many;
+        }
+    }
+
+    private static final ThreadLocal<LastCardinality> lastCardinality = new ThreadLocal<LastCardinality>();
+
+    private static final PreparedQuery valuesQuery = PreparedQuery.prepare("[:find ?v " +
+                                                                           ":in $ ?e ?a " +
+                                                                           ":where [?e ?a ?v]]");
+    private static final PreparedQuery cardinalityQuery = PreparedQuery.prepare("[:find ?v . " +
+                                                                                ":in $ ?attr " +
+                                                                                ":where " +
+                                                                                "[?attr :db/cardinality ?card] " +
+                                                                                "[?card :db/ident ?v]]");
+
+    /**
+     * Function intended for use inside a Datomic query. Reads e's values
+     * of attr straight from EAVT. The attribute's cardinality is read from
+     * db, and reused while the same thread keeps asking about the same
+     * database value and attribute, so it is right for any database
+     * value, including one from before or after a schema alteration.
      *
      * @param db      a database value
      * @param e       an entity id
@@ -25,17 +60,56 @@ public class MaybeQuery {
      *                on cardinality of the attribute, and whether any values are present
      */
     public static Object maybe(Object db, Object e, Object attr, Object ifNot) {
-        Collection<List<Object>> result = query("[:find ?v " +
-                                                 ":in $ ?e ?a " +
-                                                 ":where [?e ?a ?v]]", db, e, attr);
+        Database d = (Database) db;
+        Iterator<Datom> it = d.datoms(Database.EAVT, e, attr).iterator();
+        if (!it.hasNext()) return ifNot;
+        return values(it, isCardinalityMany(d, attr));
+    }
+
+    /**
+     * Like maybe, taking cardinality from schema, which follows schema
+     * alterations. Pass the registry to the query as an input:
+     * [(datomic.samples.MaybeQuery/maybe ?schema $ ?e :db/doc "none") ?doc]
+     */
+    public static Object maybe(SchemaRegistry schema, Object db, Object e, Object attr, Object ifNot) {
+        Iterator<Datom> it = ((Database) db).datoms(Database.EAVT, e, attr).iterator();
+        if (!it.hasNext()) return ifNot;
+        return values(it, schema.attribute(attr).many);
+    }
+
+    private static boolean isCardinalityMany(Database db, Object attr) {
+        LastCardinality last = lastCardinality.get();
+        if (last != null && last.db.get() == db && last.attr.equals(attr)) return last.many;
+        Entity a = db.entity(attr);
+        boolean many = a != null && CARDINALITY_MANY.equals(a.get(CARDINALITY));
+        lastCardinality.set(new LastCardinality(db, attr, many));
+        return many;
+    }
+
+    private static Object values(Iterator<Datom> it, boolean many) {
+        if (!many) return it.next().v();
+        Set acc = new HashSet();
+        while (it.hasNext()) {
+            acc.add(it.next().v());
+        }
+        return Collections.unmodifiableSet(acc);
+    }
+
+    /**
+     * maybe as two nested queries per call, one for the values and one
+     * for the attribute's cardinality. Kept to compare against maybe,
+     * and returns the same values.
+     */
+    public static Object maybeByQuery(Object db, Object e, Object attr, Object ifNot) {
+        Collection<List<Object>> result = valuesQuery.query(db, e, attr);
         if (result.isEmpty()) {
             return ifNot;
         } else {
-            Object card = cardinality(db, attr);
-            if (card.equals(CARDINALITY_ONE)) return result.iterator().next(); // only one in list
+            Object card = cardinalityQuery.query(db, attr);
+            if (card.equals(CARDINALITY_ONE)) return result.iterator().next().get(0); // only one in list
             Set acc = new HashSet();
             for (Iterator<List<Object>> iterator = result.iterator(); iterator.hasNext(); ) {
-                acc.add(iterator.next());
+                acc.add(iterator.next().get(0));
             }
             return Collections.unmodifiableSet(acc);
         }
@@ -0,0 +1,354 @@
+package datomic.samples;
+
+import clojure.java.api.Clojure;
+import clojure.lang.IFn;
+import clojure.lang.Symbol;
+import datomic.Connection;
+import datomic.Database;
+import datomic.Peer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import static datomic.samples.Fns.scratchConnection;
+import static datomic.samples.IO.transactAllFromResource;
+
+/**
+ * Runs a query with a large collection or relation input as several
+ * smaller queries on a ForkJoinPool, each against the same database
+ * value with part of the input, then merges the results.
+ *
+ * How results are merged depends on the find spec:
+ * <ul>
+ * <li>CONCAT: no aggregates, or every partitioned variable is a grouping
+ *     variable, so each result row comes from exactly one partition</li>
+ * <li>COMBINE: aggregates are re-aggregated per group. min and max always
+ *     combine; count and sum only when the partitioned variables are in
+ *     :find or :with, so no value is counted by two partitions</li>
+ * <li>SEQUENTIAL: anything else (count-distinct, avg, ...) runs as one
+ *     query, as do inputs too small to be worth splitting</li>
+ * </ul>
+ */
+public class ParallelQuery {
+    public enum Strategy { CONCAT, COMBINE, SEQUENTIAL }
+
+    private static final Symbol ELLIPSIS = Symbol.intern("...");
+    private static final Symbol DOT = Symbol.intern(".");
+    private static final Set<String> COMBINABLE = new HashSet<String>(Arrays.asList("min", "max", "count", "sum"));
+    private static final IFn add = Clojure.var("clojure.core", "+");
+    private static final IFn compare = Clojure.var("clojure.core", "compare");
+
+    private final ForkJoinPool pool;
+    private final int threshold;
+
+    /**
+     * @param threshold  input elements per query; larger inputs are split
+     */
+    public ParallelQuery(ForkJoinPool pool, int threshold) {
+        if (threshold < 1) {
+            throw new IllegalArgumentException("threshold must be positive, got " + threshold);
+        }
+        this.pool = pool;
+        this.threshold = threshold;
+    }
+
+    /**
+     * How a query and its inputs would run.
+     */
+    public Strategy strategy(Object query, Object... inputs) {
+        return new Split(PreparedQuery.prepare(query), inputs).strategy;
+    }
+
+    public <T> T query(Object query, Object... inputs) {
+        PreparedQuery pq = PreparedQuery.prepare(query);
+        Split split = new Split(pq, inputs);
+        if (split.strategy == Strategy.SEQUENTIAL) {
+            return pq.query(inputs);
+        }
+        List rows = pool.invoke(new Part(split, split.input, 0, split.input.size()));
+        return (T) split.shape(rows);
+    }
+
+    /**
+     * A query, the input chosen for partitioning, and how results merge.
+     */
+    private class Split {
+        final PreparedQuery pq;
+        final Object[] inputs;
+        final Strategy strategy;
+        /** index into inputs of the partitioned collection, or -1 */
+        int partitioned = -1;
+        List input;
+        /** aggregate function name for each :find element, or null for grouping elements */
+        String[] aggregates;
+
+        Split(PreparedQuery pq, Object[] inputs) {
+            this.pq = pq;
+            this.inputs = inputs;
+            this.strategy = choose();
+        }
+
+        private Strategy choose() {
+            if (inputs.length != pq.in().size()) return Strategy.SEQUENTIAL;
+            Set<Symbol> partitionVars = new HashSet<Symbol>();
+            int largest = 0;
+            for (int i = 0; i < inputs.length; i++) {
+                Object binding = pq.in().get(i);
+                if (!isCollectionBinding(binding) && !isRelationBinding(binding)) continue;
+                if (!(inputs[i] instanceof Collection)) continue;
+                int size = ((Collection) inputs[i]).size();
+                if (size > largest) {
+                    largest = size;
+                    partitioned = i;
+                    partitionVars.clear();
+                    variables(binding, partitionVars);
+                }
+            }
+            if (largest < 2 * threshold) return Strategy.SEQUENTIAL;
+            // duplicates would be counted once by one query but twice across partitions
+            input = new ArrayList(new LinkedHashSet((Collection) inputs[partitioned]));
+
+            List elements = findElements();
+            aggregates = new String[elements.size()];
+            Set<Symbol> grouping = new HashSet<Symbol>();
+            boolean aggregated = false;
+            boolean combinable = true;
+            boolean onlyExtremes = true;
+            for (int i = 0; i < elements.size(); i++) {
+                Object element = elements.get(i);
+                String aggregate = aggregate(element);
+                if (aggregate == null) {
+                    variables(element, grouping);
+                } else {
+                    aggregates[i] = aggregate;
+                    aggregated = true;
+                    combinable &= COMBINABLE.contains(aggregate) && ((List) element).size() == 2;
+                    onlyExtremes &= aggregate.equals("min") || aggregate.equals("max");
+                }
+            }
+            if (!aggregated || grouping.containsAll(partitionVars)) {
+                Arrays.fill(aggregates, null);
+                return Strategy.CONCAT;
+            }
+            variables(pq.with(), grouping);
+            if (combinable && (onlyExtremes || grouping.containsAll(partitionVars))) {
+                return Strategy.COMBINE;
+            }
+            return Strategy.SEQUENTIAL;
+        }
+
+        /**
+         * The :find elements, whatever the find form.
+         */
+        private List findElements() {
+            List find = pq.find();
+            if (find.size() == 1 && find.get(0) instanceof List && !isExpression(find.get(0))) {
+                List inner = (List) find.get(0);
+                return isCollectionBinding(inner) ? inner.subList(0, 1) : inner;
+            }
+            if (find.size() == 2 && DOT.equals(find.get(1))) {
+                return find.subList(0, 1);
+            }
+            return find;
+        }
+
+        Object[] inputsFor(List part) {
+            Object[] args = inputs.clone();
+            args[partitioned] = part;
+            return args;
+        }
+
+        /**
+         * Turns one query's result into rows, whatever the find form.
+         */
+        List rows(Object result) {
+            List find = pq.find();
+            List rows = new ArrayList();
+            if (result == null) return rows;
+            if (find.size() == 2 && DOT.equals(find.get(1))) {
+                rows.add(Collections.singletonList(result));
+            } else if (find.size() == 1 && find.get(0) instanceof List && !isExpression(find.get(0))) {
+                if (isCollectionBinding(find.get(0))) {
+                    for (Iterator it = ((Collection) result).iterator(); it.hasNext(); ) {
+                        rows.add(Collections.singletonList(it.next()));
+                    }
+                } else {
+                    rows.add(result);
+                }
+            } else {
+                rows.addAll((Collection) result);
+            }
+            return rows;
+        }
+
+        /**
+         * Merges two lists of rows from disjoint partitions.
+         */
+        List merge(List left, List right) {
+            if (strategy == Strategy.CONCAT) {
+                left.addAll(right);
+                return left;
+            }
+            Map<List, List> groups = new LinkedHashMap<List, List>();
+            combineInto(groups, left);
+            combineInto(groups, right);
+            return new ArrayList(groups.values());
+        }
+
+        private void combineInto(Map<List, List> groups, List rows) {
+            for (Iterator<List> it = rows.iterator(); it.hasNext(); ) {
+                List row = it.next();
+                List key = new ArrayList();
+                for (int i = 0; i < aggregates.length; i++) {
+                    if (aggregates[i] == null) key.add(row.get(i));
+                }
+                List existing = groups.get(key);
+                if (existing == null) {
+                    groups.put(key, row);
+                    continue;
+                }
+                List combined = new ArrayList(existing);
+                for (int i = 0; i < aggregates.length; i++) {
+                    if (aggregates[i] != null) combined.set(i, combine(aggregates[i], existing.get(i), row.get(i)));
+                }
+                groups.put(key, combined);
+            }
+        }
+
+        /**
+         * Turns merged rows back into the query's find form.
+         */
+        Object shape(List rows) {
+            List find = pq.find();
+            if (find.size() == 2 && DOT.equals(find.get(1))) {
+                return rows.isEmpty() ? null : ((List) rows.get(0)).get(0);
+            }
+            if (find.size() == 1 && find.get(0) instanceof List && !isExpression(find.get(0))) {
+                if (!isCollectionBinding(find.get(0))) {
+                    return rows.isEmpty() ? null : rows.get(0);
+                }
+                Set values = new LinkedHashSet();
+                for (Iterator<List> it = rows.iterator(); it.hasNext(); ) {
+                    values.add(it.next().get(0));
+                }
+                return new ArrayList(values);
+            }
+            return new HashSet(rows);
+        }
+    }
+
+    private static Object combine(String aggregate, Object a, Object b) {
+        if (aggregate.equals("count") || aggregate.equals("sum")) {
+            return add.invoke(a, b);
+        }
+        int c = ((Number) compare.invoke(a, b)).intValue();
+        return aggregate.equals("min") ? (c <= 0 ? a : b) : (c >= 0 ? a : b);
+    }
+
+    private class Part extends RecursiveTask<List> {
+        private final Split split;
+        private final List input;
+        private final int from;
+        private final int to;
+
+        Part(Split split, List input, int from, int to) {
+            this.split = split;
+            this.input = input;
+            this.from = from;
+            this.to = to;
+        }
+
+        protected List compute() {
+            if (to - from <= threshold) {
+                return split.rows(Peer.query(split.pq.form(), split.inputsFor(input.subList(from, to))));
+            }
+            int mid = (from + to) >>> 1;
+            Part left = new Part(split, input, from, mid);
+            left.fork();
+            List right = new Part(split, input, mid, to).compute();
+            return split.merge(left.join(), right);
+        }
+    }
+
+    private static boolean isCollectionBinding(Object binding) {
+        return binding instanceof List && ((List) binding).size() == 2 && ELLIPSIS.equals(((List) binding).get(1));
+    }
+
+    private static boolean isRelationBinding(Object binding) {
+        return binding instanceof List && ((List) binding).size() == 1 && ((List) binding).get(0) instanceof List;
+    }
+
+    /**
+     * True for aggregate and pull expressions, which are lists starting with a symbol.
+     */
+    private static boolean isExpression(Object element) {
+        return element instanceof List && !((List) element).isEmpty() && ((List) element).get(0) instanceof Symbol
+                && !((Symbol) ((List) element).get(0)).getName().startsWith("?");
+    }
+
+    /**
+     * @return the aggregate function's name, or null for variables and pull expressions
+     */
+    private static String aggregate(Object element) {
+        if (!isExpression(element)) return null;
+        String name = ((Symbol) ((List) element).get(0)).getName();
+        return name.equals("pull") ? null : name;
+    }
+
+    private static void variables(Object form, Set<Symbol> into) {
+        if (form instanceof Symbol && ((Symbol) form).getName().startsWith("?")) {
+            into.add((Symbol) form);
+        } else if (form instanceof Collection) {
+            for (Iterator it = ((Collection) form).iterator(); it.hasNext(); ) {
+                variables(it.next(), into);
+            }
+        }
+    }
+
+    /**
+     * Compares sequential and parallel runs of collection-bound queries.
+     */
+    public static void main(String[] args) {
+        Connection conn = scratchConnection();
+        transactAllFromResource(conn, DataGenerator.MBRAINZ_SCHEMA);
+        DataGenerator.load(conn, new DataGenerator(42, 100).mbrainz(5000), 8);
+        final Database db = conn.db();
+        final List names = new ArrayList();
+        for (int i = 0; i < 5000; i++) {
+            names.add(DataGenerator.artistName(i));
+        }
+        final ParallelQuery parallel = new ParallelQuery(new ForkJoinPool(), 250);
+        String[] queries = {
+                "[:find ?name (count ?t) :in $ [?name ...] :where [?a :artist/name ?name] [?t :track/artists ?a]]",
+                "[:find (max ?d) . :in $ [?name ...] :where [?a :artist/name ?name] [?t :track/artists ?a] [?t :track/duration ?d]]",
+                "[:find (count-distinct ?t) . :in $ [?name ...] :where [?a :artist/name ?name] [?t :track/artists ?a]]"};
+        for (int i = 0; i < queries.length; i++) {
+            final PreparedQuery pq = PreparedQuery.prepare(queries[i]);
+            System.out.println(pq.form());
+            System.out.println("strategy " + parallel.strategy(pq.form(), db, names) + ", same result: "
+                               + pq.query(db, names).equals(parallel.query(pq.form(), db, names)));
+            Bench.report("sequential", Bench.nsPerOp(3, 10, new Runnable() {
+                public void run() {
+                    pq.query(db, names);
+                }
+            }));
+            Bench.report("parallel", Bench.nsPerOp(3, 10, new Runnable() {
+                public void run() {
+                    parallel.query(pq.form(), db, names);
+                }
+            }));
+        }
+        Peer.shutdown(true);
+    }
+}
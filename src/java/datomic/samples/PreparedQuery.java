@@ -0,0 +1,185 @@
+package datomic.samples;
+
+import clojure.lang.Keyword;
+import datomic.Connection;
+import datomic.Database;
+import datomic.Peer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static datomic.Util.read;
+import static datomic.samples.Fns.scratchConnection;
+import static datomic.samples.IO.transactAllFromResource;
+
+/**
+ * A query parsed and checked once, then run many times with different
+ * inputs. Accepts query text, list form (see QueryAsData) or map form.
+ *
+ * Prepared queries are kept in a bounded, least recently used cache
+ * keyed by the query as given, so prepare can be called on every use
+ * without re-parsing.
+ */
+public class PreparedQuery {
+    public static final Object FIND = read(":find");
+    public static final Object WITH = read(":with");
+    public static final Object IN = read(":in");
+    public static final Object WHERE = read(":where");
+
+    private static final int CACHE_SIZE = 1024;
+    private static final Map<Object, PreparedQuery> cache =
+            new LinkedHashMap<Object, PreparedQuery>(64, 0.75f, true) {
+                protected boolean removeEldestEntry(Map.Entry<Object, PreparedQuery> eldest) {
+                    return size() > CACHE_SIZE;
+                }
+            };
+
+    private final Object form;
+    private final List find;
+    private final List with;
+    private final List in;
+    private final List where;
+
+    private PreparedQuery(Object form, Map<Object, List> sections) {
+        this.form = form;
+        this.find = section(sections, FIND);
+        this.with = section(sections, WITH);
+        this.in = sections.containsKey(IN) ? section(sections, IN) : Collections.singletonList(read("$"));
+        this.where = section(sections, WHERE);
+    }
+
+    /**
+     * @param query  query text, list form or map form, or a PreparedQuery,
+     *               which is returned as is
+     */
+    public static PreparedQuery prepare(Object query) {
+        if (query instanceof PreparedQuery) return (PreparedQuery) query;
+        synchronized (cache) {
+            PreparedQuery pq = cache.get(query);
+            if (pq != null) return pq;
+        }
+        PreparedQuery pq = parse(query);
+        synchronized (cache) {
+            cache.put(query, pq);
+        }
+        return pq;
+    }
+
+    private static PreparedQuery parse(Object query) {
+        Object form = query instanceof String ? read((String) query) : query;
+        Map<Object, List> sections = new LinkedHashMap<Object, List>();
+        if (form instanceof Map) {
+            for (Iterator<Map.Entry> it = ((Map) form).entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry entry = it.next();
+                if (!(entry.getValue() instanceof List)) {
+                    throw new IllegalArgumentException("Query section " + entry.getKey() + " must be a list in " + query);
+                }
+                sections.put(entry.getKey(), (List) entry.getValue());
+            }
+        } else if (form instanceof List) {
+            List current = null;
+            for (Iterator it = ((List) form).iterator(); it.hasNext(); ) {
+                Object o = it.next();
+                if (o instanceof Keyword) {
+                    current = new ArrayList();
+                    if (sections.put(o, current) != null) {
+                        throw new IllegalArgumentException("Duplicate " + o + " in " + query);
+                    }
+                } else if (current == null) {
+                    throw new IllegalArgumentException("Query must start with a keyword: " + query);
+                } else {
+                    current.add(o);
+                }
+            }
+        } else {
+            throw new IllegalArgumentException("Not a query: " + query);
+        }
+        if (section(sections, FIND).isEmpty()) {
+            throw new IllegalArgumentException("Query has no :find: " + query);
+        }
+        return new PreparedQuery(form, sections);
+    }
+
+    private static List section(Map<Object, List> sections, Object key) {
+        List l = sections.get(key);
+        return l == null ? Collections.emptyList() : Collections.unmodifiableList(l);
+    }
+
+    /**
+     * The parsed query, as passed to Peer.query.
+     */
+    public Object form() {
+        return form;
+    }
+
+    public List find() {
+        return find;
+    }
+
+    public List with() {
+        return with;
+    }
+
+    /**
+     * Input bindings, defaulting to [$] when the query has no :in.
+     */
+    public List in() {
+        return in;
+    }
+
+    public List where() {
+        return where;
+    }
+
+    public <T> T query(Object... inputs) {
+        if (inputs.length != in.size()) {
+            throw new IllegalArgumentException("Query expects " + in.size() + " inputs " + in + ", got " + inputs.length);
+        }
+        return Peer.query(form, inputs);
+    }
+
+    /**
+     * Estimates how much of a small lookup's latency is spent parsing
+     * query text, by comparing text, pre-read data and prepared queries.
+     */
+    public static void main(String[] args) {
+        Connection conn = scratchConnection();
+        transactAllFromResource(conn, "datomic-java-examples/social-news.edn");
+        transactAllFromResource(conn, "datomic-java-examples/stuarts.edn");
+        final Database db = conn.db();
+        final String text = "[:find [?e ...] :in $ ?name :where [?e :user/firstName ?name]]";
+        final Object data = read(text);
+        final PreparedQuery prepared = prepare(text);
+
+        Bench.report("read query text", Bench.nsPerOp(10000, 100000, new Runnable() {
+            public void run() {
+                read(text);
+            }
+        }));
+        Bench.report("Peer.query with text", Bench.nsPerOp(10000, 100000, new Runnable() {
+            public void run() {
+                Peer.query(text, db, "Stewart");
+            }
+        }));
+        Bench.report("Peer.query with data", Bench.nsPerOp(10000, 100000, new Runnable() {
+            public void run() {
+                Peer.query(data, db, "Stewart");
+            }
+        }));
+        Bench.report("prepare + query", Bench.nsPerOp(10000, 100000, new Runnable() {
+            public void run() {
+                prepare(text).query(db, "Stewart");
+            }
+        }));
+        Bench.report("prepared query", Bench.nsPerOp(10000, 100000, new Runnable() {
+            public void run() {
+                prepared.query(db, "Stewart");
+            }
+        }));
+        Peer.shutdown(true);
+    }
+}
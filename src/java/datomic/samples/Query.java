@@ -478,7 +478,7 @@ public class Query {
             Peer.query(queryRequest);
         } catch (Exception e) {
             error = e;
-            if (error.getMessage().contains("Query canceled")) {
+            if (QueryTimeoutException.isCancellation(error)) {
                 System.out.println("Caught expected timeout exception: " + error.getMessage());
             } else {
                 throw new RuntimeException(e);
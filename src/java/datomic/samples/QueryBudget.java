@@ -0,0 +1,149 @@
+package datomic.samples;
+
+import datomic.Connection;
+import datomic.Database;
+import datomic.Peer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static datomic.samples.Fns.scratchConnection;
+import static datomic.samples.IO.transactAllFromResource;
+
+/**
+ * Time allowed for all the queries made while handling one request.
+ * Create one per request and issue its queries through it.
+ *
+ * Each query gets whatever time the request has left, and no more than
+ * a multiple of its shape's recent p99 latency once that shape has run
+ * enough times to have one. The p99 is taken over a window of recent
+ * calls, with canceled calls counted at the time they ran, so the cap
+ * follows the shape's latency up as well as down. A query that runs away is canceled near its usual
+ * worst case instead of using up the rest of the request, and once the
+ * budget is gone further queries fail at once without running. Either
+ * way the caller gets a QueryTimeoutException.
+ *
+ * Timeouts, including queries refused for lack of budget, are counted
+ * against each shape in the InstrumentedQuery the budget runs through.
+ */
+public class QueryBudget {
+    public static final double DEFAULT_P99_MULTIPLE = 4;
+    /** recent calls a shape needs before its p99 is trusted to cap a timeout */
+    public static final long MIN_CALLS = 20;
+
+    private final InstrumentedQuery queries;
+    private final long budgetMillis;
+    private final double p99Multiple;
+    private final long start = System.nanoTime();
+
+    public QueryBudget(InstrumentedQuery queries, long budgetMillis) {
+        this(queries, budgetMillis, DEFAULT_P99_MULTIPLE);
+    }
+
+    /**
+     * @param p99Multiple  cap each query at this multiple of its shape's
+     *                     p99, or 0 to give every query all that remains
+     */
+    public QueryBudget(InstrumentedQuery queries, long budgetMillis, double p99Multiple) {
+        if (budgetMillis <= 0) {
+            throw new IllegalArgumentException("Budget must be positive, got " + budgetMillis);
+        }
+        this.queries = queries;
+        this.budgetMillis = budgetMillis;
+        this.p99Multiple = p99Multiple;
+    }
+
+    public long budgetMillis() {
+        return budgetMillis;
+    }
+
+    public long elapsedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    public long remainingMillis() {
+        return Math.max(0, budgetMillis - elapsedMillis());
+    }
+
+    /**
+     * The timeout query would run with now: what remains of the budget,
+     * capped by its shape's recent p99. 0 if the budget is spent.
+     */
+    public long timeoutFor(Object query) {
+        return timeoutFor(queries.shapeOf(query));
+    }
+
+    private long timeoutFor(InstrumentedQuery.Shape shape) {
+        long timeout = remainingMillis();
+        if (timeout == 0 || p99Multiple <= 0) return timeout;
+        if (shape.recentCount() < MIN_CALLS) return timeout;
+        long cap = (long) Math.ceil(p99Multiple * shape.recentPercentileMicros(0.99) / 1000.0);
+        return Math.min(timeout, Math.max(1, cap));
+    }
+
+    /**
+     * Runs query with the timeout from timeoutFor.
+     *
+     * @throws QueryTimeoutException if the query is canceled, or the budget
+     *                               is spent before it starts
+     */
+    public <T> T query(Object query, Object... inputs) {
+        PreparedQuery pq = PreparedQuery.prepare(query);
+        InstrumentedQuery.Shape shape = queries.shapeOf(pq);
+        long timeout = timeoutFor(shape);
+        if (timeout == 0) {
+            shape.refused();
+            throw new QueryTimeoutException(shape.fingerprint, 0, 0, this, null);
+        }
+        return queries.run(pq, shape, timeout, this, inputs);
+    }
+
+    /**
+     * Serves requests of two lookups by artist name, where every 100th
+     * request asks for every artist's titles at once, with and without
+     * p99 caps, and shows what those requests cost.
+     */
+    public static void main(String[] args) {
+        Connection conn = scratchConnection();
+        transactAllFromResource(conn, DataGenerator.MBRAINZ_SCHEMA);
+        DataGenerator.load(conn, new DataGenerator(42, 100).mbrainz(5000), 8);
+        Database db = conn.db();
+        String lookup = "[:find ?e . :in $ ?name :where [?e :artist/name ?name]]";
+        String titles = "[:find ?title :in $ [?name ...] :where [?a :artist/name ?name] [?t :track/artists ?a]" +
+                        " [?t :track/name ?title]]";
+        List<String> everyone = new ArrayList<String>();
+        for (int i = 0; i < 5000; i++) {
+            everyone.add(DataGenerator.artistName(i));
+        }
+
+        InstrumentedQuery queries = new InstrumentedQuery(Long.MAX_VALUE);
+        double[] multiples = {0, DEFAULT_P99_MULTIPLE};
+        for (int m = 0; m < multiples.length; m++) {
+            long spent = 0;
+            int timeouts = 0;
+            for (int i = 0; i < 400; i++) {
+                QueryBudget budget = new QueryBudget(queries, 50, multiples[m]);
+                String name = DataGenerator.artistName(i);
+                try {
+                    budget.query(lookup, db, name);
+                    // same shape, but thousands of times the work
+                    budget.query(titles, db, i % 100 == 99 ? everyone : Collections.singletonList(name));
+                } catch (QueryTimeoutException e) {
+                    timeouts++;
+                    if (timeouts == 1) System.out.println("  " + e.getMessage());
+                }
+                spent += budget.elapsedMillis();
+            }
+            System.out.println("p99 multiple " + multiples[m] + ": " + timeouts + " timeouts, "
+                               + spent / 400.0 + " ms per request");
+        }
+        for (Iterator<InstrumentedQuery.Shape> it = queries.shapes().iterator(); it.hasNext(); ) {
+            InstrumentedQuery.Shape shape = it.next();
+            System.out.printf("%s %5.1f%% timeouts  %s%n", shape.fingerprint, 100 * shape.timeoutRate(), shape.text);
+        }
+        Peer.shutdown(true);
+    }
+}
@@ -0,0 +1,437 @@
+package datomic.samples;
+
+import clojure.lang.Keyword;
+import clojure.lang.Symbol;
+import datomic.Connection;
+import datomic.Database;
+import datomic.Datom;
+import datomic.Peer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import static datomic.Connection.DB_AFTER;
+import static datomic.Connection.DB_BEFORE;
+import static datomic.Connection.TX_DATA;
+import static datomic.Util.list;
+import static datomic.Util.map;
+import static datomic.samples.Fns.scratchConnection;
+import static datomic.samples.IO.transactAllFromResource;
+
+/**
+ * Caches query results. Database values are immutable, so a query run
+ * twice with the same inputs against the same database value always has
+ * the same result.
+ *
+ * Database inputs are keyed by basis t, as-of and since points, history
+ * and, for filtered databases, the identity of the filtered value. Use
+ * one cache per database: values from different databases can share a
+ * basis t.
+ *
+ * The cache is bounded by entry count and by total weight (by default,
+ * the number of rows in each result), evicting the least recently or
+ * least frequently used entry first.
+ *
+ * Fed transaction reports (it is a TxReportDispatcher.Subscriber), the
+ * cache also carries results forward: a miss at a newer basis reuses the
+ * result from an older one when no transaction in between touched an
+ * attribute the query reads.
+ */
+public class QueryCache implements TxReportDispatcher.Subscriber {
+    public enum Policy { LRU, LFU }
+
+    public interface Weigher {
+        long weigh(Object result);
+    }
+
+    public static final Weigher ROWS = new Weigher() {
+        public long weigh(Object result) {
+            return result instanceof Collection ? Math.max(1, ((Collection) result).size()) : 1;
+        }
+    };
+
+    private static final int MAX_CHANGES = 4096;
+
+    /**
+     * What identifies a database value, except its connection.
+     */
+    private static class DbKey {
+        final long basisT;
+        final Long asOfT;
+        final Long sinceT;
+        final boolean history;
+        /** the database itself if filtered, since filters cannot be compared */
+        final Database filtered;
+
+        DbKey(long basisT, Long asOfT, Long sinceT, boolean history, Database filtered) {
+            this.basisT = basisT;
+            this.asOfT = asOfT;
+            this.sinceT = sinceT;
+            this.history = history;
+            this.filtered = filtered;
+        }
+
+        static DbKey of(Database db) {
+            return new DbKey(db.basisT(), db.asOfT(), db.sinceT(), db.isHistory(), db.isFiltered() ? db : null);
+        }
+
+        DbKey withoutBasis() {
+            return new DbKey(-1, asOfT, sinceT, history, filtered);
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof DbKey)) return false;
+            DbKey k = (DbKey) o;
+            return basisT == k.basisT && eq(asOfT, k.asOfT) && eq(sinceT, k.sinceT) && history == k.history
+                    && filtered == k.filtered;
+        }
+
+        public int hashCode() {
+            return Arrays.hashCode(new Object[]{basisT, asOfT, sinceT, history, System.identityHashCode(filtered)});
+        }
+
+        private static boolean eq(Object a, Object b) {
+            return a == null ? b == null : a.equals(b);
+        }
+    }
+
+    private static class Key {
+        final Object form;
+        final List inputs;
+
+        Key(Object form, List inputs) {
+            this.form = form;
+            this.inputs = inputs;
+        }
+
+        Key withoutBasis() {
+            List l = new ArrayList(inputs.size());
+            for (Iterator it = inputs.iterator(); it.hasNext(); ) {
+                Object o = it.next();
+                l.add(o instanceof DbKey ? ((DbKey) o).withoutBasis() : o);
+            }
+            return new Key(form, l);
+        }
+
+        public boolean equals(Object o) {
+            return o instanceof Key && form.equals(((Key) o).form) && inputs.equals(((Key) o).inputs);
+        }
+
+        public int hashCode() {
+            return form.hashCode() * 31 + inputs.hashCode();
+        }
+    }
+
+    private static class Entry {
+        final Key key;
+        final long basisT;
+        final Object result;
+        final long weight;
+        long hits;
+        long used;
+
+        Entry(Key key, long basisT, Object result, long weight) {
+            this.key = key;
+            this.basisT = basisT;
+            this.result = result;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * Attributes touched by the transaction from beforeT to afterT.
+     */
+    private static class Change {
+        final long afterT;
+        final Set<Long> attrs;
+
+        Change(long afterT, Set<Long> attrs) {
+            this.afterT = afterT;
+            this.attrs = attrs;
+        }
+    }
+
+    private final int maxEntries;
+    private final long maxWeight;
+    private final Weigher weigher;
+    private final Map<Key, Entry> entries = new HashMap<Key, Entry>();
+    private final TreeSet<Entry> eviction;
+    /** most recent entry for each query and inputs, whatever its basis */
+    private final Map<Key, Entry> latest = new HashMap<Key, Entry>();
+    private final TreeMap<Long, Change> changes = new TreeMap<Long, Change>();
+    private final Map<Object, Set<Object>> attributesRead = new HashMap<Object, Set<Object>>();
+    private long weight;
+    private long clock;
+    private long hits;
+    private long misses;
+    private long carried;
+    private long evictions;
+
+    public QueryCache(int maxEntries, long maxWeight, Policy policy) {
+        this(maxEntries, maxWeight, policy, ROWS);
+    }
+
+    public QueryCache(int maxEntries, long maxWeight, Policy policy, Weigher weigher) {
+        this.maxEntries = maxEntries;
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+        this.eviction = new TreeSet<Entry>(policy == Policy.LRU ? new Comparator<Entry>() {
+            public int compare(Entry a, Entry b) {
+                return a.used < b.used ? -1 : a.used == b.used ? 0 : 1;
+            }
+        } : new Comparator<Entry>() {
+            public int compare(Entry a, Entry b) {
+                if (a.hits != b.hits) return a.hits < b.hits ? -1 : 1;
+                return a.used < b.used ? -1 : a.used == b.used ? 0 : 1;
+            }
+        });
+    }
+
+    /**
+     * Runs query, or returns its cached result. Queries using rand or
+     * sample are never cached.
+     *
+     * @param inputs  as for Peer.query
+     */
+    public <T> T query(Object query, Object... inputs) {
+        PreparedQuery pq = PreparedQuery.prepare(query);
+        if (mentions(pq.find(), "rand") || mentions(pq.find(), "sample")) {
+            return pq.query(inputs);
+        }
+        Database db = null;
+        int databases = 0;
+        List keyInputs = new ArrayList(inputs.length);
+        for (int i = 0; i < inputs.length; i++) {
+            if (inputs[i] instanceof Database) {
+                db = (Database) inputs[i];
+                databases++;
+                keyInputs.add(DbKey.of(db));
+            } else {
+                keyInputs.add(inputs[i]);
+            }
+        }
+        Key key = new Key(pq.form(), keyInputs);
+        synchronized (this) {
+            Entry e = entries.get(key);
+            if (e != null) {
+                hits++;
+                touch(e);
+                return (T) e.result;
+            }
+            if (databases == 1 && db.sinceT() == null) {
+                Entry older = latest.get(key.withoutBasis());
+                if (older != null && older.basisT < db.basisT() && untouched(older.basisT, db.basisT(), attributesRead(pq, db))) {
+                    carried++;
+                    put(new Entry(key, db.basisT(), older.result, older.weight));
+                    return (T) older.result;
+                }
+            }
+            misses++;
+        }
+        Object result = pq.query(inputs);
+        synchronized (this) {
+            if (!entries.containsKey(key)) {
+                put(new Entry(key, databases == 1 ? db.basisT() : -1, result, weigher.weigh(result)));
+            }
+        }
+        return (T) result;
+    }
+
+    /**
+     * Records which attributes a transaction touched.
+     */
+    public synchronized void report(Map txReport) {
+        long before = ((Database) txReport.get(DB_BEFORE)).basisT();
+        long after = ((Database) txReport.get(DB_AFTER)).basisT();
+        Set<Long> attrs = new HashSet<Long>();
+        for (Iterator<Datom> it = ((List<Datom>) txReport.get(TX_DATA)).iterator(); it.hasNext(); ) {
+            attrs.add(((Number) it.next().a()).longValue());
+        }
+        changes.put(before, new Change(after, attrs));
+        while (changes.size() > MAX_CHANGES) {
+            changes.pollFirstEntry();
+        }
+    }
+
+    public synchronized long hits() {
+        return hits;
+    }
+
+    public synchronized long misses() {
+        return misses;
+    }
+
+    /**
+     * @return misses answered by carrying a result forward to a newer basis
+     */
+    public synchronized long carried() {
+        return carried;
+    }
+
+    public synchronized long evictions() {
+        return evictions;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long weight() {
+        return weight;
+    }
+
+    public synchronized double hitRatio() {
+        long lookups = hits + carried + misses;
+        return lookups == 0 ? 0 : (double) (hits + carried) / lookups;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        latest.clear();
+        eviction.clear();
+        weight = 0;
+    }
+
+    public synchronized String toString() {
+        return "entries=" + entries.size() + " weight=" + weight + " hits=" + hits + " carried=" + carried
+                + " misses=" + misses + " evictions=" + evictions;
+    }
+
+    private void touch(Entry e) {
+        eviction.remove(e);
+        e.hits++;
+        e.used = ++clock;
+        eviction.add(e);
+    }
+
+    private void put(Entry e) {
+        if (e.weight > maxWeight) return;
+        e.used = ++clock;
+        entries.put(e.key, e);
+        eviction.add(e);
+        weight += e.weight;
+        Key unbased = e.key.withoutBasis();
+        Entry previous = latest.get(unbased);
+        if (previous == null || previous.basisT <= e.basisT) latest.put(unbased, e);
+        while (entries.size() > maxEntries || weight > maxWeight) {
+            Entry victim = eviction.pollFirst();
+            entries.remove(victim.key);
+            Key victimUnbased = victim.key.withoutBasis();
+            if (latest.get(victimUnbased) == victim) latest.remove(victimUnbased);
+            weight -= victim.weight;
+            evictions++;
+        }
+    }
+
+    /**
+     * True if reports cover every transaction from t0 to t1, and none of
+     * them touched attrs.
+     */
+    private boolean untouched(long t0, long t1, Set<Object> attrs) {
+        if (attrs == null) return false;
+        for (long t = t0; t < t1; ) {
+            Change c = changes.get(t);
+            if (c == null) return false;
+            for (Iterator<Object> it = attrs.iterator(); it.hasNext(); ) {
+                if (c.attrs.contains(it.next())) return false;
+            }
+            t = c.afterT;
+        }
+        return true;
+    }
+
+    /**
+     * Ids of the attributes the query's :where reads, or null if that
+     * cannot be told from the query alone (variable attributes, rules,
+     * function calls, pull).
+     */
+    private Set<Object> attributesRead(PreparedQuery pq, Database db) {
+        if (attributesRead.containsKey(pq.form())) return attributesRead.get(pq.form());
+        Set<Object> idents = new HashSet<Object>();
+        boolean known = !mentions(pq.find(), "pull") && patternAttributes(pq.where(), idents);
+        Set<Object> ids = null;
+        if (known) {
+            ids = new HashSet<Object>();
+            for (Iterator<Object> it = idents.iterator(); it.hasNext(); ) {
+                Object id = db.entid(it.next());
+                if (id != null) ids.add(((Number) id).longValue());
+            }
+        }
+        attributesRead.put(pq.form(), ids);
+        return ids;
+    }
+
+    private static boolean patternAttributes(List clauses, Set<Object> into) {
+        for (Iterator it = clauses.iterator(); it.hasNext(); ) {
+            Object clause = it.next();
+            if (!(clause instanceof List) || ((List) clause).isEmpty()) return false;
+            List l = (List) clause;
+            Object head = l.get(0);
+            if (head instanceof List) {
+                // predicates are fine; a function given a database could read anything
+                if (mentions(head, "$")) return false;
+                continue;
+            }
+            if (head instanceof Symbol) {
+                String name = ((Symbol) head).getName();
+                if (name.equals("not") || name.equals("or") || name.equals("and")) {
+                    if (!patternAttributes(l.subList(1, l.size()), into)) return false;
+                    continue;
+                }
+                if (name.equals("not-join") || name.equals("or-join")) {
+                    if (!patternAttributes(l.subList(2, l.size()), into)) return false;
+                    continue;
+                }
+                if (name.startsWith("$")) l = l.subList(1, l.size());
+                else if (!name.startsWith("?") && !name.equals("_")) return false;
+            }
+            if (l.size() < 2 || !(l.get(1) instanceof Keyword)) return false;
+            into.add(l.get(1));
+        }
+        return true;
+    }
+
+    private static boolean mentions(Object form, String symbol) {
+        if (form instanceof Symbol) return ((Symbol) form).getName().equals(symbol);
+        if (form instanceof Collection) {
+            for (Iterator it = ((Collection) form).iterator(); it.hasNext(); ) {
+                if (mentions(it.next(), symbol)) return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Repeats the Aggregates queries, then shows a result carried past a
+     * transaction that did not touch the attribute it reads.
+     */
+    public static void main(String[] args) throws Exception {
+        Connection conn = scratchConnection();
+        transactAllFromResource(conn, "datomic-java-examples/bigger-than-pluto.edn");
+        QueryCache cache = new QueryCache(1000, 100000, Policy.LRU);
+        String biggest = "[:find (max ?radius) . :where [_ :object/meanRadius ?radius]]";
+        String names = "[:find ?name :where [?e :object/name ?name]]";
+
+        for (int i = 0; i < 1000; i++) {
+            cache.query(biggest, conn.db());
+            cache.query(names, conn.db());
+        }
+        System.out.println(cache);
+
+        cache.report(conn.transact(list(map(":db/id", Peer.tempid(":db.part/user"), ":object/name", "Planet X"))).get());
+        System.out.println("after adding a name: biggest " + cache.query(biggest, conn.db()) + ", "
+                           + ((Collection) cache.query(names, conn.db())).size() + " names");
+        System.out.println(cache);
+        Peer.shutdown(true);
+    }
+}
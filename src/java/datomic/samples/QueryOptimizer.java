@@ -0,0 +1,540 @@
+package datomic.samples;
+
+import clojure.java.api.Clojure;
+import clojure.lang.IFn;
+import clojure.lang.Keyword;
+import clojure.lang.Symbol;
+import datomic.Connection;
+import datomic.Database;
+import datomic.Datom;
+import datomic.Peer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static datomic.samples.Fns.scratchConnection;
+import static datomic.samples.IO.transactAllFromResource;
+
+/**
+ * Reorders a query's :where clauses so the most selective clauses run
+ * first, using statistics read from the indexes of a database value.
+ *
+ * For each attribute the optimizer counts datoms, distinct entities and
+ * distinct values from AEVT: exactly for small attributes, and for large
+ * ones by reading short runs at evenly spaced entity ids with seekDatoms
+ * and scaling up, so statistics never cost a full scan. For clauses with a constant value of an
+ * indexed or ref attribute it counts the matching AVET or VAET datoms
+ * directly. Clauses are then picked greedily: the cheapest clause that
+ * joins to something already bound, with predicates and function calls
+ * placed as soon as their inputs are bound.
+ *
+ * not, or, rules and clauses on other sources are not reordered, nor is
+ * anything moved across them. Statistics are cached, so create one
+ * optimizer per database value and reuse it for many queries.
+ */
+public class QueryOptimizer {
+    private static final IFn prStr = Clojure.var("clojure.core", "pr-str");
+    private static final Symbol DEFAULT_SOURCE = Symbol.intern("$");
+    /** datoms read in full before an attribute is sampled instead */
+    private static final int EXACT_LIMIT = 1 << 14;
+    private static final int PROBES = 64;
+    private static final int WINDOW = 256;
+    private static final long COUNT_LIMIT = 1 << 20;
+    private static final long UNKNOWN = Long.MAX_VALUE / 4;
+
+    /**
+     * What the indexes say about one attribute.
+     */
+    public static class Stats {
+        public final long datoms;
+        public final long entities;
+        /** distinct values, estimated from the sample for large attributes */
+        public final long values;
+        /** true if AVET holds this attribute */
+        public final boolean avet;
+        /** true for refs, which VAET holds */
+        public final boolean ref;
+
+        Stats(long datoms, long entities, long values, boolean avet, boolean ref) {
+            this.datoms = datoms;
+            this.entities = entities;
+            this.values = values;
+            this.avet = avet;
+            this.ref = ref;
+        }
+
+        public long perEntity() {
+            return entities == 0 ? 0 : Math.max(1, datoms / entities);
+        }
+
+        public long perValue() {
+            return values == 0 ? 0 : Math.max(1, datoms / values);
+        }
+
+        /**
+         * True if datoms can be found by value without scanning AEVT.
+         */
+        public boolean valueIndexed() {
+            return avet || ref;
+        }
+
+        public String toString() {
+            return datoms + " datoms, " + entities + " entities, " + values + " values"
+                    + (avet ? ", AVET" : "") + (ref ? ", VAET" : "");
+        }
+    }
+
+    /**
+     * One :where clause in its chosen position.
+     */
+    public static class Step {
+        public final Object clause;
+        /** estimated datoms read for each binding of the clause's bound variables */
+        public final long estimate;
+        public final String basis;
+
+        Step(Object clause, long estimate, String basis) {
+            this.clause = clause;
+            this.estimate = estimate;
+            this.basis = basis;
+        }
+    }
+
+    public static class Plan {
+        public final PreparedQuery original;
+        public final List<Step> steps;
+        private final Object form;
+
+        Plan(PreparedQuery original, List<Step> steps) {
+            this.original = original;
+            this.steps = Collections.unmodifiableList(steps);
+            List q = new ArrayList();
+            q.add(PreparedQuery.FIND);
+            q.addAll(original.find());
+            if (!original.with().isEmpty()) {
+                q.add(PreparedQuery.WITH);
+                q.addAll(original.with());
+            }
+            q.add(PreparedQuery.IN);
+            q.addAll(original.in());
+            q.add(PreparedQuery.WHERE);
+            for (Iterator<Step> it = steps.iterator(); it.hasNext(); ) {
+                q.add(it.next().clause);
+            }
+            this.form = q;
+        }
+
+        /**
+         * The query with its :where clauses in planned order.
+         */
+        public Object form() {
+            return form;
+        }
+
+        public PreparedQuery prepared() {
+            return PreparedQuery.prepare(form);
+        }
+
+        public String explain() {
+            StringBuilder sb = new StringBuilder();
+            int i = 1;
+            for (Iterator<Step> it = steps.iterator(); it.hasNext(); i++) {
+                Step s = it.next();
+                String estimate = s.estimate >= UNKNOWN ? "?" : Long.toString(s.estimate);
+                sb.append(String.format("%3d %12s  %-50s %s%n", i, estimate, prStr.invoke(s.clause), s.basis));
+            }
+            return sb.toString();
+        }
+
+        public String toString() {
+            return explain();
+        }
+    }
+
+    private final Database db;
+    private final Map<Object, Stats> stats = new ConcurrentHashMap<Object, Stats>();
+
+    public QueryOptimizer(Database db) {
+        this.db = db;
+    }
+
+    public Database db() {
+        return db;
+    }
+
+    /**
+     * @return statistics for attr, or null if attr is not an attribute
+     */
+    public Stats stats(Object attr) {
+        Object id = db.entid(attr);
+        if (id == null) return null;
+        Stats s = stats.get(id);
+        if (s == null) {
+            s = collect(id);
+            if (s != null) stats.put(id, s);
+        }
+        return s;
+    }
+
+    private Stats collect(Object attr) {
+        SchemaRegistry.Attribute a = SchemaRegistry.lookup(db, attr);
+        if (a == null) return null;
+        boolean avet = a.avet();
+        boolean ref = a.ref();
+        Tally head = new Tally();
+        Iterator<Datom> it = db.datoms(Database.AEVT, attr).iterator();
+        while (it.hasNext() && head.datoms < EXACT_LIMIT) {
+            head.add(it.next());
+        }
+        if (!it.hasNext()) {
+            return new Stats(head.datoms, head.entities, head.counts.size(), avet, ref);
+        }
+        return sample(((Number) attr).longValue(), head.firstE, avet, ref);
+    }
+
+    /**
+     * Estimates stats from PROBES runs of up to WINDOW datoms, one at the
+     * start of each of PROBES equal stretches of the attribute's entity
+     * ids. A run that reaches the end of its stretch counts exactly;
+     * otherwise it is scaled by the ids left in the stretch.
+     */
+    private Stats sample(long attrId, long minE, boolean avet, boolean ref) {
+        long maxE = lastEntity(attrId, minE);
+        long stride = Math.max(1, (maxE - minE) / PROBES + 1);
+        double datoms = 0;
+        double entities = 0;
+        Tally values = new Tally();
+        for (long p = minE; p <= maxE && p >= minE; p += stride) {
+            long end = p + stride;
+            Tally run = new Tally();
+            boolean covered = true;
+            for (Iterator<Datom> it = db.seekDatoms(Database.AEVT, attrId, p).iterator(); it.hasNext(); ) {
+                Datom d = it.next();
+                if (((Number) d.a()).longValue() != attrId || ((Number) d.e()).longValue() >= end) break;
+                if (run.datoms == WINDOW) {
+                    covered = false;
+                    break;
+                }
+                run.add(d);
+                values.add(d);
+            }
+            if (run.datoms == 0) continue;
+            double scale = covered ? 1 : (double) (end - run.firstE) / (run.lastE - run.firstE + 1);
+            datoms += run.datoms * scale;
+            entities += run.entities * scale;
+        }
+        long total = Math.max(values.datoms, Math.round(datoms));
+        return new Stats(total, Math.max(values.entities, Math.round(entities)), values.distinct(total), avet, ref);
+    }
+
+    /**
+     * The largest entity id with a datom of attrId, by binary search with seekDatoms.
+     */
+    private long lastEntity(long attrId, long lo) {
+        long hi = Long.MAX_VALUE;
+        while (lo < hi) {
+            long range = hi - lo;
+            long mid = lo + (range >>> 1) + (range & 1);
+            Iterator<Datom> it = db.seekDatoms(Database.AEVT, attrId, mid).iterator();
+            if (it.hasNext() && ((Number) it.next().a()).longValue() == attrId) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Datoms, entities and value frequencies of a run of AEVT datoms.
+     */
+    private static class Tally {
+        long datoms;
+        long entities;
+        long firstE = -1;
+        long lastE = -1;
+        final Map<Object, Integer> counts = new HashMap<Object, Integer>();
+
+        void add(Datom d) {
+            long e = ((Number) d.e()).longValue();
+            if (datoms++ == 0) firstE = e;
+            if (e != lastE) {
+                entities++;
+                lastE = e;
+            }
+            Integer n = counts.get(d.v());
+            counts.put(d.v(), n == null ? 1 : n + 1);
+        }
+
+        /**
+         * Distinct values among total datoms, by the GEE estimator: values
+         * seen once in the sample stand for sqrt(total / sampled) values
+         * each, values seen more often for themselves.
+         */
+        long distinct(long total) {
+            long once = 0;
+            for (Iterator<Integer> it = counts.values().iterator(); it.hasNext(); ) {
+                if (it.next() == 1) once++;
+            }
+            double estimate = Math.sqrt((double) total / Math.max(1, datoms)) * once + (counts.size() - once);
+            return Math.min(total, Math.round(estimate));
+        }
+    }
+
+    public Plan optimize(Object query) {
+        PreparedQuery pq = PreparedQuery.prepare(query);
+        Set<Symbol> bound = new HashSet<Symbol>();
+        variables(pq.in(), bound);
+        List<Step> steps = new ArrayList<Step>();
+        List pending = new ArrayList();
+        for (Iterator it = pq.where().iterator(); it.hasNext(); ) {
+            Object clause = it.next();
+            if (isBarrier(clause)) {
+                order(pending, bound, steps);
+                pending.clear();
+                steps.add(new Step(clause, UNKNOWN, "not reordered"));
+                barrierVariables(clause, bound);
+            } else {
+                pending.add(clause);
+            }
+        }
+        order(pending, bound, steps);
+        return new Plan(pq, steps);
+    }
+
+    public String explain(Object query) {
+        return optimize(query).explain();
+    }
+
+    /**
+     * Greedily orders a run of reorderable clauses, adding what they bind to bound.
+     */
+    private void order(List clauses, Set<Symbol> bound, List<Step> steps) {
+        List remaining = new ArrayList(clauses);
+        while (!remaining.isEmpty()) {
+            if (placeExpressions(remaining, bound, steps)) continue;
+            Object best = null;
+            long bestEstimate = 0;
+            boolean bestJoins = false;
+            String bestBasis = null;
+            for (Iterator it = remaining.iterator(); it.hasNext(); ) {
+                Object clause = it.next();
+                if (isExpression(clause)) continue;
+                String[] basis = new String[1];
+                long estimate = estimate((List) clause, bound, basis);
+                boolean joins = bound.isEmpty() || shares(clause, bound);
+                if (best == null || (joins && !bestJoins) || (joins == bestJoins && estimate < bestEstimate)) {
+                    best = clause;
+                    bestEstimate = estimate;
+                    bestJoins = joins;
+                    bestBasis = bestJoins ? basis[0] : basis[0] + ", cross product";
+                }
+            }
+            if (best == null) {
+                // expressions whose inputs are never bound: leave them for the query engine to report
+                for (Iterator it = remaining.iterator(); it.hasNext(); ) {
+                    steps.add(new Step(it.next(), UNKNOWN, "inputs unbound"));
+                }
+                return;
+            }
+            remaining.remove(best);
+            steps.add(new Step(best, bestEstimate, bestBasis));
+            variables(best, bound);
+        }
+    }
+
+    /**
+     * Places every predicate or function call whose inputs are all bound.
+     *
+     * @return true if any were placed
+     */
+    private static boolean placeExpressions(List remaining, Set<Symbol> bound, List<Step> steps) {
+        boolean placed = false;
+        for (Iterator it = remaining.iterator(); it.hasNext(); ) {
+            Object clause = it.next();
+            if (!isExpression(clause)) continue;
+            Set<Symbol> inputs = new HashSet<Symbol>();
+            variables(((List) clause).get(0), inputs);
+            if (!bound.containsAll(inputs)) continue;
+            it.remove();
+            boolean binds = ((List) clause).size() > 1;
+            steps.add(new Step(clause, 1, binds ? "function" : "predicate"));
+            variables(clause, bound);
+            placed = true;
+        }
+        return placed;
+    }
+
+    /**
+     * Estimates the datoms a data pattern reads, given the bound variables.
+     */
+    private long estimate(List pattern, Set<Symbol> bound, String[] basis) {
+        int offset = DEFAULT_SOURCE.equals(pattern.get(0)) ? 1 : 0;
+        Object e = element(pattern, offset);
+        Object a = element(pattern, offset + 1);
+        Object v = element(pattern, offset + 2);
+        if (!isConstant(a, bound)) {
+            basis[0] = "unbound attribute";
+            return UNKNOWN;
+        }
+        Stats s = a instanceof Keyword || a instanceof Number ? stats(a) : null;
+        if (s == null) {
+            basis[0] = "no statistics";
+            return UNKNOWN;
+        }
+        boolean eBound = isConstant(e, bound);
+        if (v != null && !isVariable(v) && s.valueIndexed()) {
+            long count = count(a, s.ref && v instanceof Keyword ? db.entid(v) : v, s.ref);
+            basis[0] = s.ref ? "VAET count" : "AVET count";
+            return eBound ? Math.min(count, s.perEntity()) : count;
+        }
+        if (eBound) {
+            basis[0] = "EAVT, " + s.perEntity() + " per entity";
+            return s.perEntity();
+        }
+        if (isConstant(v, bound)) {
+            if (!s.valueIndexed()) {
+                basis[0] = "AEVT scan, " + s.datoms + " datoms";
+                return s.datoms;
+            }
+            basis[0] = (s.ref ? "VAET, " : "AVET, ") + s.perValue() + " per value";
+            return s.perValue();
+        }
+        basis[0] = "AEVT, " + s.datoms + " datoms";
+        return s.datoms;
+    }
+
+    private long count(Object attr, Object value, boolean ref) {
+        if (value == null) return 0;
+        Iterable<Datom> datoms = ref ? db.datoms(Database.VAET, value, attr) : db.datoms(Database.AVET, attr, value);
+        long n = 0;
+        for (Iterator<Datom> it = datoms.iterator(); it.hasNext() && n < COUNT_LIMIT; it.next()) {
+            n++;
+        }
+        return n;
+    }
+
+    private static Object element(List pattern, int i) {
+        return i < pattern.size() ? pattern.get(i) : null;
+    }
+
+    private static boolean isVariable(Object o) {
+        return o instanceof Symbol && ((Symbol) o).getName().startsWith("?");
+    }
+
+    private static boolean isConstant(Object o, Set<Symbol> bound) {
+        if (o == null || o instanceof Symbol && ((Symbol) o).getName().equals("_")) return false;
+        return !isVariable(o) || bound.contains(o);
+    }
+
+    /**
+     * True for predicates [(pred ?x)] and function calls [(f ?x) ?y].
+     */
+    private static boolean isExpression(Object clause) {
+        return clause instanceof List && !((List) clause).isEmpty() && ((List) clause).get(0) instanceof List;
+    }
+
+    /**
+     * True for not, or, rule invocations, and patterns on a source other than $.
+     */
+    private static boolean isBarrier(Object clause) {
+        if (!(clause instanceof List) || ((List) clause).isEmpty()) return true;
+        Object first = ((List) clause).get(0);
+        if (first instanceof List) return false;
+        if (first instanceof Symbol) {
+            String name = ((Symbol) first).getName();
+            if (name.startsWith("$")) return !first.equals(DEFAULT_SOURCE);
+            return !name.startsWith("?") && !name.equals("_");
+        }
+        return false;
+    }
+
+    /**
+     * Adds the variables a barrier clause binds for the clauses after it:
+     * none for not and not-join, which only filter; the join variables of
+     * or-join; those common to every branch of or; and the arguments of a
+     * rule or the variables of a pattern on another source.
+     */
+    private static void barrierVariables(Object clause, Set<Symbol> into) {
+        if (!(clause instanceof List) || ((List) clause).isEmpty()) return;
+        List l = (List) clause;
+        String op = l.get(0) instanceof Symbol ? ((Symbol) l.get(0)).getName() : "";
+        if (op.equals("not") || op.equals("not-join")) return;
+        if (op.equals("or-join")) {
+            if (l.size() > 1) variables(l.get(1), into);
+        } else if (op.equals("or")) {
+            Set<Symbol> common = null;
+            for (Iterator it = l.subList(1, l.size()).iterator(); it.hasNext(); ) {
+                Set<Symbol> branch = new HashSet<Symbol>();
+                variables(it.next(), branch);
+                if (common == null) common = branch;
+                else common.retainAll(branch);
+            }
+            if (common != null) into.addAll(common);
+        } else {
+            variables(clause, into);
+        }
+    }
+
+    private static boolean shares(Object clause, Set<Symbol> bound) {
+        Set<Symbol> vars = new HashSet<Symbol>();
+        variables(clause, vars);
+        vars.retainAll(bound);
+        return !vars.isEmpty();
+    }
+
+    private static void variables(Object form, Set<Symbol> into) {
+        if (isVariable(form)) {
+            into.add((Symbol) form);
+        } else if (form instanceof Collection) {
+            for (Iterator it = ((Collection) form).iterator(); it.hasNext(); ) {
+                variables(it.next(), into);
+            }
+        }
+    }
+
+    /**
+     * Plans a query written in the worst order, and times it before and after.
+     */
+    public static void main(String[] args) {
+        Connection conn = scratchConnection();
+        transactAllFromResource(conn, DataGenerator.MBRAINZ_SCHEMA);
+        DataGenerator.load(conn, new DataGenerator(42, 100).mbrainz(2000), 8);
+        final Database db = conn.db();
+        final String name = DataGenerator.artistName(1000);
+
+        String query = "[:find ?title ?year" +
+                       " :in $ ?name" +
+                       " :where [?t :track/name ?title]" +
+                       "        [?r :release/year ?year]" +
+                       "        [?r :release/media ?m]" +
+                       "        [?m :medium/tracks ?t]" +
+                       "        [?t :track/artists ?a]" +
+                       "        [(< 1969 ?year)]" +
+                       "        [?a :artist/name ?name]]";
+        Plan plan = new QueryOptimizer(db).optimize(query);
+        System.out.println(plan.explain());
+
+        final PreparedQuery before = plan.original;
+        final PreparedQuery after = plan.prepared();
+        Bench.report("as written", Bench.nsPerOp(2, 5, new Runnable() {
+            public void run() {
+                before.query(db, name);
+            }
+        }));
+        Bench.report("optimized", Bench.nsPerOp(100, 1000, new Runnable() {
+            public void run() {
+                after.query(db, name);
+            }
+        }));
+        Peer.shutdown(true);
+    }
+}
@@ -0,0 +1,396 @@
+package datomic.samples;
+
+import clojure.java.api.Clojure;
+import clojure.lang.IFn;
+import clojure.lang.Keyword;
+import clojure.lang.Symbol;
+import datomic.Connection;
+import datomic.Database;
+import datomic.Datom;
+import datomic.Peer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import static datomic.Util.list;
+import static datomic.Util.read;
+import static datomic.samples.Fns.scratchConnection;
+import static datomic.samples.IO.transactAllFromResource;
+
+/**
+ * Query results delivered a page at a time, with a cursor that resumes
+ * after the last row of a page, even from another process.
+ *
+ * A query whose :where is a single pattern on one attribute, such as
+ * [:find ?e ?v :where [?e :artist/name ?v]], is answered straight from
+ * the indexes: AEVT, or AVET when only the value is found or the value
+ * is a constant. Each page then seeks to the cursor and reads just the
+ * datoms it needs, so exporting a relation of any size runs in bounded
+ * memory. Other queries are run with Peer.query once per stream and
+ * paged from the sorted result.
+ *
+ * Pages are always read from the database as of the t the stream was
+ * opened at, so rows are neither skipped nor repeated by later
+ * transactions.
+ */
+public class QueryStream {
+    private static final Symbol BLANK = Symbol.intern("_");
+    private static final IFn prStr = Clojure.var("clojure.core", "pr-str");
+    private static final IFn compare = Clojure.var("clojure.core", "compare");
+
+    /**
+     * Where the next page starts. Printable as edn with toString and
+     * readable back with parse.
+     *
+     * A cursor into a materialized result whose rows could not be sorted
+     * is an offset into an order only its own stream knows. It is not
+     * resumable: it prints with an :unordered marker, and only the stream
+     * that produced it will accept it.
+     */
+    public static class Cursor {
+        private static final Keyword UNORDERED = Keyword.intern("unordered");
+
+        public final long t;
+        /** components after the attribute of the last datom read, or the offset of the next row */
+        private final Object position;
+        /** for cursors that are not resumable, the stream that made them */
+        private final QueryStream owner;
+        private final boolean resumable;
+
+        private Cursor(long t, Object position, QueryStream owner, boolean resumable) {
+            this.t = t;
+            this.position = position;
+            this.owner = owner;
+            this.resumable = resumable;
+        }
+
+        public static Cursor parse(String s) {
+            List l = (List) read(s);
+            return new Cursor(((Number) l.get(0)).longValue(), l.get(1), null, l.size() < 3);
+        }
+
+        /**
+         * False if only the stream that returned this cursor can continue from it.
+         */
+        public boolean resumable() {
+            return resumable;
+        }
+
+        public String toString() {
+            return (String) prStr.invoke(resumable ? list(t, position) : list(t, position, UNORDERED));
+        }
+    }
+
+    public static class Page {
+        public final List<List> rows;
+        /** cursor for the next page, or null if this is the last */
+        public final Cursor next;
+
+        Page(List<List> rows, Cursor next) {
+            this.rows = Collections.unmodifiableList(rows);
+            this.next = next;
+        }
+    }
+
+    private final PreparedQuery pq;
+    private final Object[] inputs;
+    private final Database db;
+    private final long t;
+    private final int pageSize;
+    private final Scan scan;
+    private List<List> materialized;
+    /** why materialized could not be sorted, or null */
+    private RuntimeException unordered;
+
+    /**
+     * @param inputs  as for Peer.query; the first must be the database
+     */
+    public QueryStream(Object query, int pageSize, Object... inputs) {
+        this(query, pageSize, null, inputs);
+    }
+
+    private QueryStream(Object query, int pageSize, Cursor from, Object... inputs) {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("pageSize must be positive, got " + pageSize);
+        }
+        this.pq = PreparedQuery.prepare(query);
+        if (inputs.length == 0 || !(inputs[0] instanceof Database)) {
+            throw new IllegalArgumentException("First input must be a database");
+        }
+        Database given = (Database) inputs[0];
+        long givenT = given.asOfT() != null ? given.asOfT() : given.basisT();
+        this.t = from == null ? givenT : from.t;
+        this.db = t == givenT ? given : given.asOf(t);
+        this.inputs = inputs.clone();
+        this.inputs[0] = db;
+        this.pageSize = pageSize;
+        this.scan = Scan.of(pq, db, inputs.length);
+        if (scan == null && !isRelation(pq.find())) {
+            throw new IllegalArgumentException("Only relation finds can be paged: " + pq.form());
+        }
+    }
+
+    /**
+     * Reopens a stream at cursor, which may have come from another stream
+     * over the same query and inputs.
+     */
+    public static QueryStream resume(Cursor cursor, Object query, int pageSize, Object... inputs) {
+        if (!cursor.resumable) {
+            throw new IllegalArgumentException("Cursor " + cursor + " is into unsorted rows and cannot be resumed");
+        }
+        return new QueryStream(query, pageSize, cursor, inputs);
+    }
+
+    /**
+     * True if pages are read straight from an index.
+     */
+    public boolean indexBacked() {
+        return scan != null;
+    }
+
+    /**
+     * @param cursor  where to start, or null for the first page
+     */
+    public Page page(Cursor cursor) {
+        if (cursor != null && cursor.t != t) {
+            throw new IllegalArgumentException("Cursor is at t " + cursor.t + ", stream is at t " + t);
+        }
+        if (cursor != null && !cursor.resumable && cursor.owner != this) {
+            throw new IllegalArgumentException("Cursor " + cursor + " is into another stream's unsorted rows");
+        }
+        Object position = cursor == null ? null : cursor.position;
+        return scan != null ? scan.page(this, (List) position)
+                : materializedPage(cursor, position == null ? 0 : ((Number) position).intValue());
+    }
+
+    /**
+     * Every row, fetched a page at a time as the iterator advances.
+     */
+    public Iterator<List> iterator() {
+        return new Iterator<List>() {
+            private Page page = page(null);
+            private int i;
+
+            public boolean hasNext() {
+                while (i == page.rows.size() && page.next != null) {
+                    page = page(page.next);
+                    i = 0;
+                }
+                return i < page.rows.size();
+            }
+
+            public List next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                return page.rows.get(i++);
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private Page materializedPage(Cursor from, int offset) {
+        if (materialized == null) {
+            List<List> rows = new ArrayList<List>((Collection<List>) pq.query(inputs));
+            try {
+                Collections.sort(rows, new Comparator<List>() {
+                    public int compare(List a, List b) {
+                        return ((Number) compare.invoke(a, b)).intValue();
+                    }
+                });
+            } catch (RuntimeException e) {
+                // rows that cannot be compared stay in query order, which only this stream knows
+                unordered = e;
+            }
+            materialized = rows;
+        }
+        if (unordered != null && from != null && from.owner != this) {
+            throw new IllegalArgumentException("Rows could not be sorted, so cursor " + from
+                                               + " from another stream cannot be followed", unordered);
+        }
+        int end = Math.min(materialized.size(), offset + pageSize);
+        return new Page(new ArrayList<List>(materialized.subList(offset, end)),
+                        end < materialized.size() ? new Cursor(t, (long) end, this, unordered == null) : null);
+    }
+
+    /**
+     * Why the rows of a materialized stream could not be sorted, or null
+     * if they were (or the stream is index backed). While non-null, the
+     * stream's cursors are not resumable.
+     */
+    public RuntimeException sortFailure() {
+        return unordered;
+    }
+
+    /**
+     * A single pattern query answered by seeking through one index.
+     */
+    private static class Scan {
+        final Object index;
+        final Object attr;
+        final long attrId;
+        /** value every datom must have, or null */
+        final Object value;
+        final boolean findE;
+        final boolean findV;
+
+        Scan(Object index, Object attr, Object value, boolean findE, boolean findV) {
+            this.index = index;
+            this.attr = attr;
+            this.attrId = ((Number) attr).longValue();
+            this.value = value;
+            this.findE = findE;
+            this.findV = findV;
+        }
+
+        /**
+         * @return a scan for the query, or null if it needs the query engine
+         */
+        static Scan of(PreparedQuery pq, Database db, int inputs) {
+            if (inputs != 1 || pq.where().size() != 1 || !pq.with().isEmpty()) return null;
+            Object clause = pq.where().get(0);
+            if (!(clause instanceof List) || ((List) clause).size() != 3) return null;
+            List pattern = (List) clause;
+            Object e = pattern.get(0);
+            Object a = pattern.get(1);
+            Object v = pattern.get(2);
+            if (!isVariable(e) || !(a instanceof Keyword)) return null;
+            Object attr = db.entid(a);
+            if (attr == null) return null;
+            SchemaRegistry.Attribute attribute = SchemaRegistry.lookup(db, attr);
+            if (attribute == null) return null;
+            boolean avet = attribute.avet();
+            boolean ref = attribute.ref();
+
+            boolean findE = false;
+            boolean findV = false;
+            List find = pq.find();
+            for (Iterator it = find.iterator(); it.hasNext(); ) {
+                Object element = it.next();
+                if (element.equals(e)) {
+                    findE = true;
+                } else if (element.equals(v) && isVariable(v)) {
+                    findV = true;
+                } else {
+                    return null;
+                }
+            }
+            if (find.size() > 1 && (!findE || !findV || !find.get(0).equals(e))) return null;
+            boolean blank = BLANK.equals(v);
+            if (blank || isVariable(v) && !v.equals(e)) {
+                if (findE) return new Scan(Database.AEVT, attr, null, findE, findV);
+                return avet && !blank ? new Scan(Database.AVET, attr, null, false, true) : null;
+            }
+            if (isVariable(v) || !avet) return null;
+            Object value = ref && v instanceof Keyword ? db.entid(v) : v;
+            return value == null ? null : new Scan(Database.AVET, attr, value, findE, false);
+        }
+
+        Page page(QueryStream stream, List position) {
+            Database db = stream.db;
+            Object[] components = new Object[1 + (position == null ? (value == null ? 0 : 1) : position.size())];
+            components[0] = attr;
+            if (position != null) {
+                for (int i = 0; i < position.size(); i++) components[i + 1] = position.get(i);
+            } else if (value != null) {
+                components[1] = value;
+            }
+            List<List> rows = new ArrayList<List>();
+            List last = position == null ? null : row(position);
+            List lastPosition = position;
+            Iterator<Datom> it = db.seekDatoms(index, components).iterator();
+            while (it.hasNext()) {
+                Datom d = it.next();
+                if (((Number) d.a()).longValue() != attrId || value != null && !d.v().equals(value)) {
+                    return new Page(rows, null);
+                }
+                List p = position(d);
+                if (p.equals(position)) continue;
+                List row = row(p);
+                // sorted index order puts equal projections next to each other
+                if (row.equals(last)) continue;
+                if (rows.size() == stream.pageSize) {
+                    return new Page(rows, new Cursor(stream.t, lastPosition, stream, true));
+                }
+                rows.add(row);
+                last = row;
+                lastPosition = p;
+            }
+            return new Page(rows, null);
+        }
+
+        /**
+         * The datom's components after the attribute, in index order.
+         */
+        private List position(Datom d) {
+            return index == Database.AEVT ? list(d.e(), d.v()) : list(d.v(), d.e());
+        }
+
+        private List row(List position) {
+            Object e = index == Database.AEVT ? position.get(0) : position.get(1);
+            Object v = index == Database.AEVT ? position.get(1) : position.get(0);
+            if (findE && findV) return Arrays.asList(e, v);
+            return Collections.singletonList(findE ? e : v);
+        }
+    }
+
+    /**
+     * True unless the find spec is a collection, tuple or scalar.
+     */
+    private static boolean isRelation(List find) {
+        if (find.contains(Symbol.intern("."))) return false;
+        Object first = find.get(0);
+        if (!(first instanceof List) || ((List) first).isEmpty()) return true;
+        // (count ?e) and (pull ?e [...]) are relation elements, [?e ...] and [?e ?v] are not
+        Object head = ((List) first).get(0);
+        return head instanceof Symbol && !isVariable(head);
+    }
+
+    private static boolean isVariable(Object o) {
+        return o instanceof Symbol && ((Symbol) o).getName().startsWith("?");
+    }
+
+    /**
+     * Exports every track name a page at a time, resuming from a printed
+     * cursor halfway through.
+     */
+    public static void main(String[] args) {
+        Connection conn = scratchConnection();
+        transactAllFromResource(conn, DataGenerator.MBRAINZ_SCHEMA);
+        DataGenerator.load(conn, new DataGenerator(42, 100).mbrainz(1000), 8);
+        Database db = conn.db();
+        String query = "[:find ?t ?name :where [?t :track/name ?name]]";
+
+        QueryStream stream = new QueryStream(query, 1000, db);
+        System.out.println("index backed: " + stream.indexBacked());
+        int pages = 0;
+        long rows = 0;
+        Cursor saved = null;
+        for (Page page = stream.page(null); ; page = stream.page(page.next)) {
+            pages++;
+            rows += page.rows.size();
+            if (pages == 5) saved = page.next;
+            if (page.next == null) break;
+        }
+        System.out.println(rows + " rows in " + pages + " pages; query returns "
+                           + ((Collection) Peer.query(query, db)).size());
+
+        if (saved != null) {
+            QueryStream resumed = resume(Cursor.parse(saved.toString()), query, 1000, db);
+            long rest = 0;
+            for (Page page = resumed.page(saved); ; page = resumed.page(page.next)) {
+                rest += page.rows.size();
+                if (page.next == null) break;
+            }
+            System.out.println("resumed at " + saved + ": " + rest + " more rows");
+        }
+        Peer.shutdown(true);
+    }
+}
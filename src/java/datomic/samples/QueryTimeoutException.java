@@ -0,0 +1,50 @@
+package datomic.samples;
+
+/**
+ * A query canceled by its timeout, or not started because its request's
+ * budget was spent, with how long it had and how long it ran.
+ */
+public class QueryTimeoutException extends RuntimeException {
+    /** fingerprint of the query's shape */
+    public final String fingerprint;
+    /** timeout the query was given, or 0 if it was never started */
+    public final long timeoutMillis;
+    /** how long the query ran before it was canceled */
+    public final long queryMillis;
+    /** the request's budget, or -1 if the query ran outside one */
+    public final long budgetMillis;
+    /** time spent on the request when the query stopped, or -1 */
+    public final long budgetElapsedMillis;
+
+    QueryTimeoutException(String fingerprint, long timeoutMillis, long queryMillis, QueryBudget budget, Throwable cause) {
+        super(message(fingerprint, timeoutMillis, queryMillis, budget), cause);
+        this.fingerprint = fingerprint;
+        this.timeoutMillis = timeoutMillis;
+        this.queryMillis = queryMillis;
+        this.budgetMillis = budget == null ? -1 : budget.budgetMillis();
+        this.budgetElapsedMillis = budget == null ? -1 : budget.elapsedMillis();
+    }
+
+    /**
+     * True if e, or anything that caused it, is Datomic canceling a
+     * query whose QueryRequest timeout elapsed.
+     */
+    public static boolean isCancellation(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause() == t ? null : t.getCause()) {
+            if (t instanceof QueryTimeoutException) return true;
+            if (t.getMessage() != null && t.getMessage().contains("Query canceled")) return true;
+        }
+        return false;
+    }
+
+    private static String message(String fingerprint, long timeoutMillis, long queryMillis, QueryBudget budget) {
+        StringBuilder sb = new StringBuilder("Query ").append(fingerprint);
+        if (timeoutMillis == 0) sb.append(" not started, request budget spent");
+        else sb.append(" canceled after ").append(queryMillis).append(" ms of ").append(timeoutMillis).append(" ms timeout");
+        if (budget != null) {
+            sb.append(" (").append(budget.elapsedMillis()).append(" of ").append(budget.budgetMillis())
+              .append(" ms budget used)");
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,212 @@
+package datomic.samples;
+
+import datomic.Connection;
+import datomic.Database;
+import datomic.Datom;
+import datomic.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static datomic.Connection.DB_AFTER;
+import static datomic.Connection.TX_DATA;
+import static datomic.Util.read;
+
+/**
+ * A transaction consumer that survives restarts. It records the t of the
+ * last transaction it handled, and on startup replays everything after
+ * that from the Log before switching to the live txReportQueue.
+ *
+ * Replay decodes log segments on several threads but hands transactions
+ * to the handler one at a time, in t order. The checkpoint is saved after
+ * each replayed segment and after each live transaction, so after a crash
+ * some transactions may be handled twice, never skipped.
+ */
+public class ResumableTxConsumer {
+    private static final Object T = read(":t");
+    private static final Object DATA = read(":data");
+
+    public interface Handler {
+        void transaction(long t, List<Datom> data);
+    }
+
+    public interface Checkpoint {
+        /**
+         * @return the last t handled, or -1 if nothing has been handled yet
+         */
+        long load();
+
+        void save(long t);
+    }
+
+    /**
+     * Checkpoint kept as text in a file, replaced atomically on save.
+     */
+    public static class FileCheckpoint implements Checkpoint {
+        private final File file;
+
+        public FileCheckpoint(File file) {
+            this.file = file;
+        }
+
+        public long load() {
+            if (!file.exists()) return -1;
+            try {
+                Scanner scanner = new Scanner(file, "UTF-8");
+                try {
+                    return scanner.nextLong();
+                } finally {
+                    scanner.close();
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        /**
+         * Writes t to a temporary file, forces it to disk, then moves it
+         * over the checkpoint atomically, so a crash leaves either the old
+         * checkpoint or the new one.
+         */
+        public void save(long t) {
+            File tmp = new File(file.getPath() + ".tmp");
+            try {
+                FileOutputStream out = new FileOutputStream(tmp);
+                try {
+                    Writer w = new OutputStreamWriter(out, "UTF-8");
+                    w.write(Long.toString(t));
+                    w.flush();
+                    out.getFD().sync();
+                } finally {
+                    out.close();
+                }
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                           StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                throw new RuntimeException("Could not replace checkpoint " + file, e);
+            }
+        }
+    }
+
+    private static class Tx {
+        final long t;
+        final List<Datom> data;
+
+        Tx(long t, List<Datom> data) {
+            this.t = t;
+            this.data = data;
+        }
+    }
+
+    private final Connection conn;
+    private final Checkpoint checkpoint;
+    private final Handler handler;
+    private final int threads;
+    private final long segmentSize;
+
+    /**
+     * @param threads      threads used to decode the log during replay
+     * @param segmentSize  span of t values each replay task decodes
+     */
+    public ResumableTxConsumer(Connection conn, Checkpoint checkpoint, Handler handler, int threads, long segmentSize) {
+        this.conn = conn;
+        this.checkpoint = checkpoint;
+        this.handler = handler;
+        this.threads = threads;
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Replays missed transactions, then handles live ones until interrupted.
+     */
+    public void run() throws InterruptedException {
+        BlockingQueue<Map> queue = conn.txReportQueue();
+        try {
+            long last = checkpoint.load();
+            long basis = conn.db().basisT();
+            if (last < basis) {
+                last = replay(last + 1, basis + 1);
+            }
+            while (!Thread.currentThread().isInterrupted()) {
+                Map report = queue.take();
+                long t = ((Database) report.get(DB_AFTER)).basisT();
+                if (t <= last) continue;
+                handler.transaction(t, (List<Datom>) report.get(TX_DATA));
+                checkpoint.save(t);
+                last = t;
+            }
+        } finally {
+            conn.removeTxReportQueue();
+        }
+    }
+
+    /**
+     * Hands every transaction with start <= t < end to the handler.
+     *
+     * @return the last t handled, or start - 1 if there were none
+     */
+    public long replay(long start, long end) throws InterruptedException {
+        final Log log = conn.log();
+        if (log == null) {
+            throw new IllegalStateException("Connection has no log to replay from");
+        }
+        long last = start - 1;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            ArrayDeque<Future<List<Tx>>> segments = new ArrayDeque<Future<List<Tx>>>();
+            long next = start;
+            while (next < end || !segments.isEmpty()) {
+                while (next < end && segments.size() < threads * 2) {
+                    final long from = next;
+                    final long to = Math.min(end, next + segmentSize);
+                    segments.addLast(pool.submit(new Callable<List<Tx>>() {
+                        public List<Tx> call() {
+                            return decode(log, from, to);
+                        }
+                    }));
+                    next = to;
+                }
+                List<Tx> txes = segments.removeFirst().get();
+                for (Iterator<Tx> it = txes.iterator(); it.hasNext(); ) {
+                    Tx tx = it.next();
+                    handler.transaction(tx.t, tx.data);
+                    last = tx.t;
+                }
+                if (!txes.isEmpty()) checkpoint.save(last);
+            }
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        return last;
+    }
+
+    private static List<Tx> decode(Log log, long from, long to) {
+        List<Tx> txes = new ArrayList<Tx>();
+        for (Iterator<Map> it = log.txRange(from, to).iterator(); it.hasNext(); ) {
+            Map entry = it.next();
+            txes.add(new Tx(((Number) entry.get(T)).longValue(),
+                            new ArrayList<Datom>((Collection<Datom>) entry.get(DATA))));
+        }
+        return txes;
+    }
+}
@@ -2,18 +2,28 @@ package datomic.samples;
 
 import datomic.Database;
 
-import static datomic.Peer.query;
 import static datomic.Util.read;
 
 public class Schema {
     public static final Object CARDINALITY_ONE = read(":db.cardinality/one");
     public static final Object CARDINALITY_MANY = read(":db.cardinality/many");
 
+    /**
+     * @return the attribute's cardinality in db, or null if there is no such attribute
+     */
     public static Object cardinality(Object db, Object attr) {
-        return query("[:find ?v . " +
-                      ":in $ ?attr " +
-                      ":where " +
-                      "[?attr :db/cardinality ?card] " +
-                      "[?card :db/ident ?v]]", db, attr);
+        SchemaRegistry.Attribute a = SchemaRegistry.lookup((Database) db, attr);
+        return a == null ? null : a.cardinality();
+    }
+
+    /**
+     * Like cardinality(db, attr), from a registry, so nothing is read from
+     * the database.
+     *
+     * @return the attribute's cardinality, or null if there is no such attribute
+     */
+    public static Object cardinality(SchemaRegistry schema, Object attr) {
+        SchemaRegistry.Attribute a = schema.get(attr);
+        return a == null ? null : a.cardinality();
     }
 }
@@ -0,0 +1,314 @@
+package datomic.samples;
+
+import datomic.Connection;
+import datomic.Database;
+import datomic.Datom;
+import datomic.Entity;
+import datomic.Peer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static datomic.Connection.DB_AFTER;
+import static datomic.Connection.DB_BEFORE;
+import static datomic.Peer.tempid;
+import static datomic.Util.list;
+import static datomic.Util.map;
+import static datomic.Util.read;
+import static datomic.samples.Fns.scratchConnection;
+import static datomic.samples.IO.transactAllFromResource;
+
+/**
+ * Every attribute's schema, loaded once and kept current from
+ * transaction reports, for code that needs an attribute's type or
+ * cardinality per datom or per row and cannot afford a query or an
+ * entity lookup each time.
+ *
+ * Attributes are held in an open addressing table keyed by id, so
+ * get(long) is a couple of array reads and allocates nothing. The table
+ * is never changed in place: a transaction that installs or alters
+ * attributes builds a new one, which readers pick up through a volatile
+ * field. Reports must arrive in order; if one is missed, the next
+ * report reloads the whole schema.
+ *
+ * A registry follows one connection. Helpers handed only a database
+ * value, which may be as of another time or filtered, read the same
+ * Attribute from that value with lookup instead.
+ */
+public class SchemaRegistry implements TxReportDispatcher.Subscriber {
+    private static final Object IDENT = read(":db/ident");
+    private static final Object VALUE_TYPE = read(":db/valueType");
+    private static final Object CARDINALITY = read(":db/cardinality");
+    private static final Object UNIQUE = read(":db/unique");
+    private static final Object INDEX = read(":db/index");
+    private static final Object FULLTEXT = read(":db/fulltext");
+    private static final Object IS_COMPONENT = read(":db/isComponent");
+    private static final Object NO_HISTORY = read(":db/noHistory");
+    private static final Object INSTALL = read(":db.install/attribute");
+    private static final Object ALTER = read(":db.alter/attribute");
+    private static final Object REF = read(":db.type/ref");
+
+    public static class Attribute {
+        public final long id;
+        public final Object ident;
+        public final Object valueType;
+        public final boolean many;
+        /** :db.unique/value, :db.unique/identity or null */
+        public final Object unique;
+        public final boolean index;
+        public final boolean fulltext;
+        public final boolean component;
+        public final boolean noHistory;
+
+        private Attribute(long id, Entity e) {
+            this.id = id;
+            this.ident = e.get(IDENT);
+            this.valueType = e.get(VALUE_TYPE);
+            this.many = Schema.CARDINALITY_MANY.equals(e.get(CARDINALITY));
+            this.unique = e.get(UNIQUE);
+            this.index = Boolean.TRUE.equals(e.get(INDEX));
+            this.fulltext = Boolean.TRUE.equals(e.get(FULLTEXT));
+            this.component = Boolean.TRUE.equals(e.get(IS_COMPONENT));
+            this.noHistory = Boolean.TRUE.equals(e.get(NO_HISTORY));
+        }
+
+        public Object cardinality() {
+            return many ? Schema.CARDINALITY_MANY : Schema.CARDINALITY_ONE;
+        }
+
+        public boolean ref() {
+            return REF.equals(valueType);
+        }
+
+        /**
+         * True if the attribute's values are in AVET.
+         */
+        public boolean avet() {
+            return unique != null || index;
+        }
+
+        public String toString() {
+            StringBuilder sb = new StringBuilder("{:db/id ").append(id)
+                    .append(", :db/ident ").append(ident)
+                    .append(", :db/valueType ").append(valueType)
+                    .append(", :db/cardinality ").append(cardinality());
+            if (unique != null) sb.append(", :db/unique ").append(unique);
+            if (index) sb.append(", :db/index true");
+            if (fulltext) sb.append(", :db/fulltext true");
+            if (component) sb.append(", :db/isComponent true");
+            if (noHistory) sb.append(", :db/noHistory true");
+            return sb.append('}').toString();
+        }
+    }
+
+    /**
+     * Attributes by id, with linear probing; id 0, which is never an
+     * attribute, marks an empty slot. At most half full.
+     */
+    private static class Table {
+        final long[] ids;
+        final Attribute[] attrs;
+        final int mask;
+        final Map<Object, Attribute> byIdent = new HashMap<Object, Attribute>();
+
+        Table(Collection<Attribute> attributes) {
+            int capacity = Integer.highestOneBit(Math.max(8, attributes.size() * 2) - 1) << 1;
+            ids = new long[capacity];
+            attrs = new Attribute[capacity];
+            mask = capacity - 1;
+            for (Iterator<Attribute> it = attributes.iterator(); it.hasNext(); ) {
+                Attribute a = it.next();
+                int i = slot(a.id);
+                while (ids[i] != 0) i = (i + 1) & mask;
+                ids[i] = a.id;
+                attrs[i] = a;
+                byIdent.put(a.ident, a);
+                byIdent.put(a.ident.toString(), a);
+            }
+        }
+
+        Attribute get(long id) {
+            for (int i = slot(id); ; i = (i + 1) & mask) {
+                long k = ids[i];
+                if (k == id) return attrs[i];
+                if (k == 0) return null;
+            }
+        }
+
+        int slot(long id) {
+            return (int) ((id * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+        }
+
+        List<Attribute> attributes() {
+            List<Attribute> all = new ArrayList<Attribute>();
+            for (int i = 0; i < attrs.length; i++) {
+                if (attrs[i] != null) all.add(attrs[i]);
+            }
+            return all;
+        }
+    }
+
+    private final long installId;
+    private final long alterId;
+    private final DatomFilter filter;
+    private volatile Table table;
+    private volatile long basisT;
+
+    public SchemaRegistry(Database db) {
+        this.installId = ((Number) db.entid(INSTALL)).longValue();
+        this.alterId = ((Number) db.entid(ALTER)).longValue();
+        this.filter = DatomFilter.forAttributes(db, IDENT, VALUE_TYPE, CARDINALITY, UNIQUE, INDEX, FULLTEXT,
+                                                IS_COMPONENT, NO_HISTORY, INSTALL, ALTER);
+        load(db);
+    }
+
+    /**
+     * @return the attribute with this id, or null
+     */
+    public Attribute get(long id) {
+        return table.get(id);
+    }
+
+    /**
+     * @param attr  an attribute id, or its ident as a keyword or a string
+     * @return the attribute, or null
+     */
+    public Attribute get(Object attr) {
+        if (attr instanceof Number) return table.get(((Number) attr).longValue());
+        return table.byIdent.get(attr);
+    }
+
+    /**
+     * Like get, for attributes that must exist.
+     */
+    public Attribute attribute(Object attr) {
+        Attribute a = get(attr);
+        if (a == null) {
+            throw new IllegalArgumentException("No attribute named " + attr);
+        }
+        return a;
+    }
+
+    public List<Attribute> attributes() {
+        return table.attributes();
+    }
+
+    /**
+     * An attribute's schema as of db, read from its entity.
+     *
+     * @param attr  an attribute id, or its ident
+     * @return the attribute, or null if attr names no attribute in db
+     */
+    public static Attribute lookup(Database db, Object attr) {
+        Object id = db.entid(attr);
+        if (id == null) return null;
+        Entity e = db.entity(id);
+        if (e.get(VALUE_TYPE) == null) return null;
+        return new Attribute(((Number) id).longValue(), e);
+    }
+
+    /**
+     * The basis t of the last database the registry was brought up to date with.
+     */
+    public long basisT() {
+        return basisT;
+    }
+
+    public synchronized void report(Map txReport) {
+        long before = ((Database) txReport.get(DB_BEFORE)).basisT();
+        Database after = (Database) txReport.get(DB_AFTER);
+        if (after.basisT() <= basisT) return;
+        if (before != basisT) {
+            load(after);
+            return;
+        }
+        final Set<Long> changed = new HashSet<Long>();
+        filter.eachInReport(txReport, new DatomFilter.Handler() {
+            public void datom(Datom d) {
+                long a = ((Number) d.a()).longValue();
+                changed.add(((Number) (a == installId || a == alterId ? d.v() : d.e())).longValue());
+            }
+        });
+        if (!changed.isEmpty()) {
+            Map<Long, Attribute> attrs = new HashMap<Long, Attribute>();
+            for (Iterator<Attribute> it = table.attributes().iterator(); it.hasNext(); ) {
+                Attribute a = it.next();
+                attrs.put(a.id, a);
+            }
+            boolean touched = false;
+            for (Iterator<Long> it = changed.iterator(); it.hasNext(); ) {
+                long id = it.next();
+                Entity e = after.entity(id);
+                // enums and partitions have idents too; only attributes have a value type
+                if (e.get(VALUE_TYPE) != null) {
+                    attrs.put(id, new Attribute(id, e));
+                    touched = true;
+                } else if (attrs.remove(id) != null) {
+                    touched = true;
+                }
+            }
+            if (touched) table = new Table(attrs.values());
+        }
+        basisT = after.basisT();
+    }
+
+    private void load(Database db) {
+        List<Attribute> attrs = new ArrayList<Attribute>();
+        for (Iterator<Datom> it = db.datoms(Database.AEVT, VALUE_TYPE).iterator(); it.hasNext(); ) {
+            long id = ((Number) it.next().e()).longValue();
+            attrs.add(new Attribute(id, db.entity(id)));
+        }
+        table = new Table(attrs);
+        basisT = db.basisT();
+    }
+
+    /**
+     * Follows a schema alteration, and compares cardinality lookups
+     * through the registry against reading them from the database.
+     */
+    public static void main(String[] args) throws Exception {
+        Connection conn = scratchConnection();
+        transactAllFromResource(conn, DataGenerator.MBRAINZ_SCHEMA);
+        final Database db = conn.db();
+        final SchemaRegistry registry = new SchemaRegistry(db);
+        System.out.println(registry.attributes().size() + " attributes");
+        System.out.println(registry.attribute(":artist/startYear"));
+
+        registry.report(conn.transact(list(map(":db/id", ":artist/startYear",
+                                               ":db/index", true,
+                                               ":db.alter/_attribute", ":db.part/db"),
+                                           map(":db/id", tempid(":db.part/db"),
+                                               ":db/ident", ":artist/alias",
+                                               ":db/valueType", ":db.type/string",
+                                               ":db/cardinality", ":db.cardinality/many",
+                                               ":db.install/_attribute", ":db.part/db"))).get());
+        System.out.println(registry.attribute(":artist/startYear"));
+        System.out.println(registry.attribute(":artist/alias"));
+
+        final Object attr = read(":track/artists");
+        final long attrId = ((Number) db.entid(attr)).longValue();
+        final Object[] sink = new Object[1];
+        Bench.report("Schema.cardinality from db", Bench.nsPerOp(100, 1000, new Runnable() {
+            public void run() {
+                sink[0] = Schema.cardinality(db, attr);
+            }
+        }));
+        Bench.report("registry by ident", Bench.nsPerOp(100000, 1000000, new Runnable() {
+            public void run() {
+                sink[0] = Schema.cardinality(registry, attr);
+            }
+        }));
+        Bench.report("registry by id", Bench.nsPerOp(100000, 1000000, new Runnable() {
+            public void run() {
+                sink[0] = registry.get(attrId).cardinality();
+            }
+        }));
+        Peer.shutdown(true);
+    }
+}
@@ -0,0 +1,472 @@
+package datomic.samples;
+
+import datomic.Connection;
+import datomic.Database;
+import datomic.Datom;
+import datomic.Peer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static datomic.Util.read;
+import static datomic.samples.Fns.scratchConnection;
+import static datomic.samples.IO.transactAllFromResource;
+
+/**
+ * Approximate aggregates in fixed memory: HyperLogLog for distinct
+ * counts, a KLL sketch for median and other quantiles, and Welford's
+ * running moments for mean, variance and standard deviation.
+ *
+ * Each sketch can be fed values one at a time and merged with another
+ * of the same configuration. scan feeds them straight from the datoms of
+ * an attribute, grouping as it goes, so memory is one sketch per group
+ * however many values each group has.
+ *
+ * The static aggregate methods, and the datomic.samples.sketches
+ * namespace (in src/resources) that makes them callable from :find, are
+ * a convenience only:
+ *
+ * <pre>
+ * [:find ?year (datomic.samples.sketches/median ?len) (datomic.samples.sketches/stddev ?len)
+ *  :with ?track
+ *  :where ...]
+ * </pre>
+ *
+ * Datomic collects every value of a group before calling an aggregate,
+ * so these save no memory over the built in aggregates; they only trade
+ * exact answers for approximate ones. Use scan to bound memory.
+ */
+public class Sketches {
+    public static final double DEFAULT_DISTINCT_ERROR = 0.01;
+    public static final int DEFAULT_QUANTILE_K = 200;
+    /** the only group when scan has no GroupBy */
+    public static final Object ALL = read(":all");
+
+    /**
+     * Anything scan can feed values to.
+     */
+    public interface Sketch {
+        void add(Object value);
+    }
+
+    public interface Factory<S extends Sketch> {
+        S create();
+    }
+
+    /**
+     * Picks the group a datom's value is counted in.
+     */
+    public interface GroupBy {
+        /**
+         * @return the group, or null to skip the datom
+         */
+        Object group(Database db, Datom d);
+    }
+
+    /**
+     * Groups by the entity's value of attr, skipping entities without one.
+     */
+    public static GroupBy byAttribute(final Object attr) {
+        return new GroupBy() {
+            public Object group(Database db, Datom d) {
+                Iterator<Datom> it = db.datoms(Database.EAVT, d.e(), attr).iterator();
+                return it.hasNext() ? it.next().v() : null;
+            }
+        };
+    }
+
+    /**
+     * Feeds every value of attr in db, in AEVT order, to a sketch for its
+     * group, created by factory on the group's first value. Nothing but
+     * the sketches is kept, so memory depends on the number of groups,
+     * not of values.
+     *
+     * @param groupBy  picks each datom's group, or null for a single group
+     * @return sketch by group, in order of first appearance
+     */
+    public static <S extends Sketch> Map<Object, S> scan(Database db, Object attr, GroupBy groupBy, Factory<S> factory) {
+        Map<Object, S> groups = new LinkedHashMap<Object, S>();
+        for (Iterator<Datom> it = db.datoms(Database.AEVT, attr).iterator(); it.hasNext(); ) {
+            Datom d = it.next();
+            Object group = groupBy == null ? ALL : groupBy.group(db, d);
+            if (group == null) continue;
+            S sketch = groups.get(group);
+            if (sketch == null) {
+                sketch = factory.create();
+                groups.put(group, sketch);
+            }
+            sketch.add(d.v());
+        }
+        return groups;
+    }
+
+    /**
+     * Distinct count estimate with relative standard error of about
+     * 1.04 / sqrt(2^precision).
+     */
+    public static class HyperLogLog implements Sketch {
+        private final int precision;
+        private final byte[] registers;
+
+        public HyperLogLog(int precision) {
+            if (precision < 4 || precision > 18) {
+                throw new IllegalArgumentException("precision must be between 4 and 18, got " + precision);
+            }
+            this.precision = precision;
+            this.registers = new byte[1 << precision];
+        }
+
+        /**
+         * @param error  relative standard error, e.g. 0.01 for 1%
+         */
+        public static HyperLogLog withError(double error) {
+            int p = (int) Math.ceil(Math.log((1.04 / error) * (1.04 / error)) / Math.log(2));
+            return new HyperLogLog(Math.max(4, Math.min(18, p)));
+        }
+
+        public void add(Object value) {
+            long h = hash(value);
+            int index = (int) (h >>> (64 - precision));
+            int rank = Long.numberOfLeadingZeros(h << precision | 1L << (precision - 1)) + 1;
+            if (rank > registers[index]) registers[index] = (byte) rank;
+        }
+
+        public void merge(HyperLogLog other) {
+            if (other.precision != precision) {
+                throw new IllegalArgumentException("Cannot merge precision " + other.precision + " into " + precision);
+            }
+            for (int i = 0; i < registers.length; i++) {
+                if (other.registers[i] > registers[i]) registers[i] = other.registers[i];
+            }
+        }
+
+        public long estimate() {
+            int m = registers.length;
+            double sum = 0;
+            int zeros = 0;
+            for (int i = 0; i < m; i++) {
+                sum += 1.0 / (1L << registers[i]);
+                if (registers[i] == 0) zeros++;
+            }
+            double alpha = m == 16 ? 0.673 : m == 32 ? 0.697 : m == 64 ? 0.709 : 0.7213 / (1 + 1.079 / m);
+            double estimate = alpha * m * m / sum;
+            if (estimate <= 2.5 * m && zeros > 0) {
+                // small range: linear counting is more accurate
+                estimate = m * Math.log((double) m / zeros);
+            }
+            return Math.round(estimate);
+        }
+
+        private static long hash(Object value) {
+            long h;
+            if (value instanceof Long || value instanceof Integer) {
+                h = ((Number) value).longValue();
+            } else if (value instanceof Double) {
+                h = Double.doubleToLongBits((Double) value);
+            } else if (value instanceof String) {
+                // FNV-1a: String.hashCode has only 32 bits to spread
+                String s = (String) value;
+                h = 0xcbf29ce484222325L;
+                for (int i = 0; i < s.length(); i++) {
+                    h = (h ^ s.charAt(i)) * 0x100000001b3L;
+                }
+            } else {
+                h = value.hashCode();
+            }
+            // murmur3 finalizer
+            h ^= h >>> 33;
+            h *= 0xff51afd7ed558ccdL;
+            h ^= h >>> 33;
+            h *= 0xc4ceb9fe1a85ec53L;
+            h ^= h >>> 33;
+            return h;
+        }
+    }
+
+    /**
+     * KLL quantile sketch over numbers. Rank error is roughly 1.7 / k,
+     * using about 3k values of memory however many are added.
+     */
+    public static class Quantiles implements Sketch {
+        private final int k;
+        private final List<double[]> levels = new ArrayList<double[]>();
+        private final List<Integer> sizes = new ArrayList<Integer>();
+        private final Random coin = new Random(0);
+        private long n;
+
+        public Quantiles(int k) {
+            if (k < 8) {
+                throw new IllegalArgumentException("k must be at least 8, got " + k);
+            }
+            this.k = k;
+            addLevel();
+        }
+
+        public void add(Object value) {
+            add(((Number) value).doubleValue());
+        }
+
+        public void add(double x) {
+            insert(0, x);
+            n++;
+            compress();
+        }
+
+        public void merge(Quantiles other) {
+            for (int h = 0; h < other.levels.size(); h++) {
+                while (levels.size() <= h) addLevel();
+                double[] values = other.levels.get(h);
+                for (int i = 0, size = other.sizes.get(h); i < size; i++) {
+                    insert(h, values[i]);
+                }
+            }
+            n += other.n;
+            compress();
+        }
+
+        public long count() {
+            return n;
+        }
+
+        /**
+         * @param q  between 0 and 1
+         * @return estimated q-quantile, or NaN if nothing was added
+         */
+        public double quantile(double q) {
+            if (n == 0) return Double.NaN;
+            int total = 0;
+            for (int h = 0; h < levels.size(); h++) total += sizes.get(h);
+            double[] values = new double[total];
+            long[] weights = new long[total];
+            Integer[] order = new Integer[total];
+            int j = 0;
+            for (int h = 0; h < levels.size(); h++) {
+                double[] level = levels.get(h);
+                for (int i = 0, size = sizes.get(h); i < size; i++, j++) {
+                    values[j] = level[i];
+                    weights[j] = 1L << h;
+                    order[j] = j;
+                }
+            }
+            final double[] vs = values;
+            Arrays.sort(order, new Comparator<Integer>() {
+                public int compare(Integer a, Integer b) {
+                    return Double.compare(vs[a], vs[b]);
+                }
+            });
+            long weight = 0;
+            for (int i = 0; i < total; i++) weight += weights[i];
+            double target = q * weight;
+            long cumulative = 0;
+            for (int i = 0; i < total; i++) {
+                cumulative += weights[order[i]];
+                if (cumulative >= target) return values[order[i]];
+            }
+            return values[order[total - 1]];
+        }
+
+        private void addLevel() {
+            levels.add(new double[8]);
+            sizes.add(0);
+        }
+
+        private void insert(int h, double x) {
+            double[] level = levels.get(h);
+            int size = sizes.get(h);
+            if (size == level.length) {
+                level = Arrays.copyOf(level, size * 2);
+                levels.set(h, level);
+            }
+            level[size] = x;
+            sizes.set(h, size + 1);
+        }
+
+        private int capacity(int h) {
+            int depth = levels.size() - h - 1;
+            return Math.max(2, (int) Math.ceil(k * Math.pow(2.0 / 3.0, depth)));
+        }
+
+        /**
+         * Halves every full level by sorting it and promoting every other
+         * value, from a random offset, to the level above at twice the weight.
+         */
+        private void compress() {
+            for (int h = 0; h < levels.size(); h++) {
+                int size = sizes.get(h);
+                if (size < capacity(h)) continue;
+                if (h + 1 == levels.size()) addLevel();
+                double[] level = levels.get(h);
+                Arrays.sort(level, 0, size);
+                int keep = size % 2;
+                for (int i = keep + (coin.nextBoolean() ? 1 : 0); i < size; i += 2) {
+                    insert(h + 1, level[i]);
+                }
+                // with an odd count the smallest value stays behind at this level
+                sizes.set(h, keep);
+            }
+        }
+    }
+
+    /**
+     * Count, mean and variance in one pass, without the cancellation
+     * error of summing squares.
+     */
+    public static class Moments implements Sketch {
+        private long n;
+        private double mean;
+        private double m2;
+
+        public void add(Object value) {
+            add(((Number) value).doubleValue());
+        }
+
+        public void add(double x) {
+            n++;
+            double delta = x - mean;
+            mean += delta / n;
+            m2 += delta * (x - mean);
+        }
+
+        public void merge(Moments other) {
+            if (other.n == 0) return;
+            long total = n + other.n;
+            double delta = other.mean - mean;
+            mean += delta * other.n / total;
+            m2 += other.m2 + delta * delta * n * other.n / total;
+            n = total;
+        }
+
+        public long count() {
+            return n;
+        }
+
+        public double mean() {
+            return n == 0 ? Double.NaN : mean;
+        }
+
+        /**
+         * Population variance, as computed by Datomic's variance aggregate.
+         */
+        public double variance() {
+            return n == 0 ? Double.NaN : m2 / n;
+        }
+
+        public double stddev() {
+            return Math.sqrt(variance());
+        }
+    }
+
+    public static long countDistinct(Collection values) {
+        return countDistinct(DEFAULT_DISTINCT_ERROR, values);
+    }
+
+    public static long countDistinct(Number error, Collection values) {
+        HyperLogLog hll = HyperLogLog.withError(error.doubleValue());
+        for (Iterator it = values.iterator(); it.hasNext(); ) {
+            hll.add(it.next());
+        }
+        return hll.estimate();
+    }
+
+    public static double median(Collection values) {
+        return quantile(0.5, values);
+    }
+
+    public static double quantile(Number q, Collection values) {
+        return quantiles(values).quantile(q.doubleValue());
+    }
+
+    public static double mean(Collection values) {
+        return moments(values).mean();
+    }
+
+    public static double variance(Collection values) {
+        return moments(values).variance();
+    }
+
+    public static double stddev(Collection values) {
+        return moments(values).stddev();
+    }
+
+    private static Quantiles quantiles(Collection values) {
+        Quantiles sketch = new Quantiles(DEFAULT_QUANTILE_K);
+        for (Iterator it = values.iterator(); it.hasNext(); ) {
+            sketch.add(((Number) it.next()).doubleValue());
+        }
+        return sketch;
+    }
+
+    private static Moments moments(Collection values) {
+        Moments moments = new Moments();
+        for (Iterator it = values.iterator(); it.hasNext(); ) {
+            moments.add(((Number) it.next()).doubleValue());
+        }
+        return moments;
+    }
+
+    /**
+     * Compares sketches with exact aggregates: from :find over grouped
+     * track name lengths, and from scan over track durations by release
+     * year and over every track name.
+     */
+    public static void main(String[] args) {
+        Connection conn = scratchConnection();
+        transactAllFromResource(conn, DataGenerator.MBRAINZ_SCHEMA);
+        DataGenerator.load(conn, new DataGenerator(42, 100).mbrainz(2000), 8);
+        Database db = conn.db();
+
+        String where = " :with ?track" +
+                       " :where [?track :track/name ?name]" +
+                       "        [(count ?name) ?len]" +
+                       "        [?medium :medium/tracks ?track]" +
+                       "        [?release :release/media ?medium]" +
+                       "        [?release :release/year ?year]]";
+        System.out.println("exact:  " + Peer.query("[:find ?year (median ?len) (avg ?len) (stddev ?len)" + where, db));
+        System.out.println("sketch: " + Peer.query("[:find ?year (datomic.samples.sketches/median ?len)" +
+                                                   " (datomic.samples.sketches/mean ?len)" +
+                                                   " (datomic.samples.sketches/stddev ?len)" + where, db));
+
+        // release year of a track, up through its medium and release
+        final Object tracks = db.entid(read(":medium/tracks"));
+        final Object media = db.entid(read(":release/media"));
+        final Object year = read(":release/year");
+        GroupBy releaseYear = new GroupBy() {
+            public Object group(Database db, Datom d) {
+                Iterator<Datom> medium = db.datoms(Database.VAET, d.e(), tracks).iterator();
+                if (!medium.hasNext()) return null;
+                Iterator<Datom> release = db.datoms(Database.VAET, medium.next().e(), media).iterator();
+                if (!release.hasNext()) return null;
+                Iterator<Datom> y = db.datoms(Database.EAVT, release.next().e(), year).iterator();
+                return y.hasNext() ? y.next().v() : null;
+            }
+        };
+        Map<Object, Quantiles> durations = scan(db, read(":track/duration"), releaseYear, new Factory<Quantiles>() {
+            public Quantiles create() {
+                return new Quantiles(DEFAULT_QUANTILE_K);
+            }
+        });
+        for (Iterator<Map.Entry<Object, Quantiles>> it = durations.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Object, Quantiles> entry = it.next();
+            Quantiles q = entry.getValue();
+            System.out.println(entry.getKey() + " p50/p99 duration: sketch " + q.quantile(0.5) + "/"
+                               + q.quantile(0.99) + " over " + q.count() + " datoms");
+        }
+
+        HyperLogLog names = scan(db, read(":track/name"), null, new Factory<HyperLogLog>() {
+            public HyperLogLog create() {
+                return HyperLogLog.withError(DEFAULT_DISTINCT_ERROR);
+            }
+        }).get(ALL);
+        System.out.println("distinct track names: exact "
+                           + Peer.query("[:find (count-distinct ?n) . :where [_ :track/name ?n]]", db)
+                           + ", sketch " + names.estimate());
+        Peer.shutdown(true);
+    }
+}
@@ -0,0 +1,635 @@
+package datomic.samples;
+
+import clojure.java.api.Clojure;
+import clojure.lang.IFn;
+import datomic.Connection;
+import datomic.Database;
+import datomic.Datom;
+import datomic.Entity;
+import datomic.Peer;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.net.URI;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.UUID;
+
+import static datomic.Database.AEVT;
+import static datomic.Database.EAVT;
+import static datomic.Util.list;
+import static datomic.Util.map;
+import static datomic.Util.read;
+import static datomic.samples.Fns.scratchConnection;
+import static datomic.samples.IO.LoadReport;
+import static datomic.samples.IO.transactAllFromResource;
+
+/**
+ * Compact binary snapshot of the current datoms of a database.
+ *
+ * Entities outside :db.part/db and :db.part/tx are exported, along with
+ * every installed attribute and partition, whether or not any datom uses
+ * it, and database functions in :db.part/db. Entity ids are not
+ * preserved: each entity is loaded under a fresh tempid and references
+ * between entities are resolved as the load proceeds. History and
+ * transaction metadata are not kept; Fns.seededConnection replays the
+ * log to copy a database with them.
+ *
+ * Layout: a header, then one record per entity (varint entity id,
+ * partition index, datom count, then attribute index and typed value per
+ * datom), then the partition and attribute tables, then a fixed size
+ * footer pointing back at the tables.
+ */
+public class Snapshot {
+    /**
+     * Compares edn and snapshot load times for the bundled seattle data, or
+     * exports the database at args[0] (e.g. an mbrainz transactor URI) and
+     * times reloading it into a mem database. Each load is warmed up
+     * before it is timed.
+     */
+    public static void main(String[] args) throws IOException {
+        Database source;
+        Runnable ednLoad = null;
+        if (args.length > 0) {
+            source = Peer.connect(args[0]).db();
+        } else {
+            ednLoad = new Runnable() {
+                public void run() {
+                    loadSeattle(scratchConnection());
+                }
+            };
+            Connection conn = scratchConnection();
+            loadSeattle(conn);
+            source = conn.db();
+        }
+
+        final File file = File.createTempFile("snapshot", ".dsnp");
+        file.deleteOnExit();
+        long start = System.nanoTime();
+        long datoms = export(source, file);
+        System.out.printf("export: %d datoms, %d bytes in %.1f ms%n",
+                          datoms, file.length(), (System.nanoTime() - start) / 1e6);
+
+        System.out.println("snapshot load: " + load(scratchConnection(), file, 10000, 4));
+        if (ednLoad != null) Bench.report("edn load", Bench.nsPerOp(3, 5, ednLoad));
+        Bench.report("snapshot load", Bench.nsPerOp(3, 5, new Runnable() {
+            public void run() {
+                try {
+                    load(scratchConnection(), file, 10000, 4);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }));
+        Peer.shutdown(true);
+    }
+
+    private static void loadSeattle(Connection conn) {
+        transactAllFromResource(conn, "datomic-java-examples/seattle-schema.edn");
+        transactAllFromResource(conn, "datomic-java-examples/seattle-data0.edn");
+        transactAllFromResource(conn, "datomic-java-examples/seattle-data1.edn");
+    }
+
+    private static final int MAGIC = 0x44534e50; // "DSNP"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int FOOTER_SIZE = 28;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final byte REF = 0, STRING = 1, LONG = 2, BOOLEAN = 3, DOUBLE = 4, FLOAT = 5,
+            INSTANT = 6, UUID_TYPE = 7, URI_TYPE = 8, BIGINT = 9, BIGDEC = 10, KEYWORD = 11, BYTES = 12, FN = 13;
+    private static final byte REF_ENTITY = 0, REF_IDENT = 1;
+    private static final int INDEX = 1, FULLTEXT = 2, COMPONENT = 4, NO_HISTORY = 8;
+
+    private static final Map<String, Byte> TYPE_CODES = new HashMap<String, Byte>();
+    static {
+        TYPE_CODES.put(":db.type/ref", REF);
+        TYPE_CODES.put(":db.type/string", STRING);
+        TYPE_CODES.put(":db.type/long", LONG);
+        TYPE_CODES.put(":db.type/boolean", BOOLEAN);
+        TYPE_CODES.put(":db.type/double", DOUBLE);
+        TYPE_CODES.put(":db.type/float", FLOAT);
+        TYPE_CODES.put(":db.type/instant", INSTANT);
+        TYPE_CODES.put(":db.type/uuid", UUID_TYPE);
+        TYPE_CODES.put(":db.type/uri", URI_TYPE);
+        TYPE_CODES.put(":db.type/bigint", BIGINT);
+        TYPE_CODES.put(":db.type/bigdec", BIGDEC);
+        TYPE_CODES.put(":db.type/keyword", KEYWORD);
+        TYPE_CODES.put(":db.type/bytes", BYTES);
+        TYPE_CODES.put(":db.type/fn", FN);
+    }
+
+    private static final Object DB_ADD = read(":db/add");
+    private static final IFn prStr = Clojure.var("clojure.core", "pr-str");
+
+    private static class Attr {
+        final String ident;
+        final byte type;
+        final String cardinality;
+        final String unique;
+        final int flags;
+        final String doc;
+        Object keyword;
+
+        Attr(String ident, byte type, String cardinality, String unique, int flags, String doc) {
+            this.ident = ident;
+            this.type = type;
+            this.cardinality = cardinality;
+            this.unique = unique;
+            this.flags = flags;
+            this.doc = doc;
+        }
+    }
+
+    /**
+     * Writes the current user datoms of db to file.
+     *
+     * @return number of datoms written
+     */
+    public static long export(Database db, File file) throws IOException {
+        Out out = new Out(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+        try {
+            return new Writer(db, out).write();
+        } finally {
+            out.close();
+        }
+    }
+
+    private static class Writer {
+        final Database db;
+        final Out out;
+        final Object dbPart;
+        final Object txPart;
+        final Map<Object, Integer> attrIndex = new HashMap<Object, Integer>();
+        final List<Attr> attrs = new ArrayList<Attr>();
+        final Map<Object, Integer> partIndex = new LinkedHashMap<Object, Integer>();
+        final List<Datom> group = new ArrayList<Datom>();
+        long entities;
+        long datoms;
+
+        Writer(Database db, Out out) {
+            this.db = db;
+            this.out = out;
+            this.dbPart = db.entid(":db.part/db");
+            this.txPart = db.entid(":db.part/tx");
+        }
+
+        long write() throws IOException {
+            out.fixed32(MAGIC);
+            out.fixed32(VERSION);
+            // schema is exported whether or not any exported datom uses it
+            for (Iterator<Datom> it = db.datoms(AEVT, ":db.install/partition").iterator(); it.hasNext(); ) {
+                partition(it.next().v());
+            }
+            for (Iterator<Datom> it = db.datoms(AEVT, ":db.install/attribute").iterator(); it.hasNext(); ) {
+                attr(it.next().v());
+            }
+            Set<Long> functions = new HashSet<Long>();
+            for (Iterator<Datom> it = db.datoms(AEVT, ":db/fn").iterator(); it.hasNext(); ) {
+                Object e = it.next().e();
+                Object ident = db.ident(e);
+                // the built in :db.fn functions are already in every database
+                if (Peer.part(e).equals(dbPart) && ident != null && !ident.toString().startsWith(":db")) {
+                    functions.add(((Number) e).longValue());
+                }
+            }
+            long currentE = -1;
+            boolean exported = false;
+            for (Iterator<Datom> it = db.datoms(EAVT).iterator(); it.hasNext(); ) {
+                Datom d = it.next();
+                long e = ((Number) d.e()).longValue();
+                if (e != currentE) {
+                    writeEntity(currentE);
+                    currentE = e;
+                    Object part = Peer.part(e);
+                    exported = part.equals(dbPart) ? functions.contains(e) : !part.equals(txPart);
+                }
+                if (exported) group.add(d);
+            }
+            writeEntity(currentE);
+
+            long tablesOffset = out.position;
+            out.varlong(partIndex.size());
+            for (Iterator<Object> it = partIndex.keySet().iterator(); it.hasNext(); ) {
+                out.string(db.ident(it.next()).toString());
+            }
+            out.varlong(attrs.size());
+            for (Iterator<Attr> it = attrs.iterator(); it.hasNext(); ) {
+                Attr a = it.next();
+                out.string(a.ident);
+                out.write(a.type);
+                out.string(a.cardinality);
+                out.string(a.unique);
+                out.write(a.flags);
+                out.string(a.doc);
+            }
+            out.fixed64(tablesOffset);
+            out.fixed64(entities);
+            out.fixed64(datoms);
+            out.fixed32(MAGIC);
+            return datoms;
+        }
+
+        private void writeEntity(long e) throws IOException {
+            List<Datom> writable = new ArrayList<Datom>(group.size());
+            for (Iterator<Datom> it = group.iterator(); it.hasNext(); ) {
+                Datom d = it.next();
+                Attr a = attr(d.a());
+                if (a == null) continue;
+                if (a.type == REF) {
+                    Object target = Peer.part(d.v());
+                    if (target.equals(txPart)) continue;
+                    if (target.equals(dbPart) && db.ident(d.v()) == null) continue;
+                }
+                writable.add(d);
+            }
+            group.clear();
+            if (writable.isEmpty()) return;
+            out.varlong(e);
+            out.varlong(partition(Peer.part(e)));
+            out.varlong(writable.size());
+            for (Iterator<Datom> it = writable.iterator(); it.hasNext(); ) {
+                Datom d = it.next();
+                int index = attrIndex.get(d.a());
+                out.varlong(index);
+                writeValue(attrs.get(index).type, d.v());
+            }
+            entities++;
+            datoms += writable.size();
+        }
+
+        private int partition(Object part) {
+            Integer p = partIndex.get(part);
+            if (p == null) {
+                p = partIndex.size();
+                partIndex.put(part, p);
+            }
+            return p;
+        }
+
+        private Attr attr(Object a) {
+            Integer index = attrIndex.get(a);
+            if (index != null) return index < 0 ? null : attrs.get(index);
+            Entity e = db.entity(a);
+            Byte type = TYPE_CODES.get(String.valueOf(e.get(":db/valueType")));
+            if (type == null) {
+                attrIndex.put(a, -1);
+                return null;
+            }
+            int flags = (Boolean.TRUE.equals(e.get(":db/index")) ? INDEX : 0)
+                      | (Boolean.TRUE.equals(e.get(":db/fulltext")) ? FULLTEXT : 0)
+                      | (Boolean.TRUE.equals(e.get(":db/isComponent")) ? COMPONENT : 0)
+                      | (Boolean.TRUE.equals(e.get(":db/noHistory")) ? NO_HISTORY : 0);
+            Attr attr = new Attr(e.get(":db/ident").toString(), type,
+                                 String.valueOf(e.get(":db/cardinality")),
+                                 e.get(":db/unique") == null ? "" : e.get(":db/unique").toString(),
+                                 flags,
+                                 e.get(":db/doc") == null ? "" : (String) e.get(":db/doc"));
+            attrIndex.put(a, attrs.size());
+            attrs.add(attr);
+            return attr;
+        }
+
+        private void writeValue(byte type, Object v) throws IOException {
+            switch (type) {
+                case REF:
+                    Object part = Peer.part(v);
+                    if (part.equals(dbPart)) {
+                        out.write(REF_IDENT);
+                        out.string(db.ident(v).toString());
+                    } else {
+                        out.write(REF_ENTITY);
+                        out.varlong(partition(part));
+                        out.varlong(((Number) v).longValue());
+                    }
+                    break;
+                case STRING: out.string((String) v); break;
+                case LONG: out.zigzag(((Number) v).longValue()); break;
+                case BOOLEAN: out.write(((Boolean) v) ? 1 : 0); break;
+                case DOUBLE: out.fixed64(Double.doubleToLongBits(((Number) v).doubleValue())); break;
+                case FLOAT: out.fixed32(Float.floatToIntBits(((Number) v).floatValue())); break;
+                case INSTANT: out.zigzag(((Date) v).getTime()); break;
+                case UUID_TYPE:
+                    out.fixed64(((UUID) v).getMostSignificantBits());
+                    out.fixed64(((UUID) v).getLeastSignificantBits());
+                    break;
+                case URI_TYPE: out.string(v.toString()); break;
+                case BIGINT: out.bytes(new BigInteger(v.toString()).toByteArray()); break;
+                case BIGDEC:
+                    out.zigzag(((BigDecimal) v).scale());
+                    out.bytes(((BigDecimal) v).unscaledValue().toByteArray());
+                    break;
+                case KEYWORD: out.string(v.toString()); break;
+                case BYTES: out.bytes((byte[]) v); break;
+                case FN: out.string((String) prStr.invoke(v)); break;
+                default: throw new IllegalArgumentException("Unknown type code " + type);
+            }
+        }
+    }
+
+    /**
+     * Loads a snapshot written by export into conn, installing any
+     * attributes and partitions it lacks. Entity records are read from a
+     * memory mapping of the file and submitted in batches of about
+     * batchDatoms datoms, up to inFlight at a time.
+     */
+    public static LoadReport load(Connection conn, File file, final int batchDatoms, int inFlight) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final In in = new In(raf.getChannel());
+            if (in.size < HEADER_SIZE + FOOTER_SIZE || in.fixed32() != MAGIC) {
+                throw new IOException(file + " is not a datom snapshot");
+            }
+            if (in.fixed32() != VERSION) {
+                throw new IOException("Unsupported snapshot version in " + file);
+            }
+            in.seek(in.size - FOOTER_SIZE);
+            final long tablesOffset = in.fixed64();
+            in.fixed64(); // entity count
+            in.fixed64(); // datom count
+            if (in.fixed32() != MAGIC) throw new IOException(file + " is truncated");
+
+            in.seek(tablesOffset);
+            final List<Object> parts = new ArrayList<Object>();
+            for (long i = in.varlong(); i > 0; i--) {
+                parts.add(read(in.string()));
+            }
+            final List<Attr> attrs = new ArrayList<Attr>();
+            for (long i = in.varlong(); i > 0; i--) {
+                Attr a = new Attr(in.string(), (byte) in.u8(), in.string(), in.string(), in.u8(), in.string());
+                a.keyword = read(a.ident);
+                attrs.add(a);
+            }
+            installSchema(conn, parts, attrs);
+
+            // source entity id to the tempid standing in for it, across all batches
+            final Map<Long, Object> tempids = new HashMap<Long, Object>();
+            in.seek(HEADER_SIZE);
+            Iterator<List> batches = new Iterator<List>() {
+                public boolean hasNext() {
+                    return in.position() < tablesOffset;
+                }
+
+                public List next() {
+                    if (!hasNext()) throw new NoSuchElementException();
+                    List batch = new ArrayList(batchDatoms);
+                    while (batch.size() < batchDatoms && hasNext()) {
+                        readEntity(in, parts, attrs, tempids, batch);
+                    }
+                    return batch;
+                }
+
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+            return new TxBatchGraph(conn, inFlight, inFlight * 4).transact(batches);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void installSchema(Connection conn, List<Object> parts, List<Attr> attrs) {
+        Database db = conn.db();
+        List tx = new ArrayList();
+        for (Iterator<Object> it = parts.iterator(); it.hasNext(); ) {
+            Object part = it.next();
+            if (db.entid(part) == null) {
+                tx.add(map(":db/id", Peer.tempid(":db.part/db"),
+                           ":db/ident", part,
+                           ":db.install/_partition", ":db.part/db"));
+            }
+        }
+        for (Iterator<Attr> it = attrs.iterator(); it.hasNext(); ) {
+            Attr a = it.next();
+            if (db.entid(a.keyword) != null) continue;
+            Map m = new HashMap(map(":db/id", Peer.tempid(":db.part/db"),
+                                    ":db/ident", a.keyword,
+                                    ":db/valueType", read(typeName(a.type)),
+                                    ":db/cardinality", read(a.cardinality),
+                                    ":db.install/_attribute", ":db.part/db"));
+            if (a.unique.length() > 0) m.put(":db/unique", read(a.unique));
+            if ((a.flags & INDEX) != 0) m.put(":db/index", true);
+            if ((a.flags & FULLTEXT) != 0) m.put(":db/fulltext", true);
+            if ((a.flags & COMPONENT) != 0) m.put(":db/isComponent", true);
+            if ((a.flags & NO_HISTORY) != 0) m.put(":db/noHistory", true);
+            if (a.doc.length() > 0) m.put(":db/doc", a.doc);
+            tx.add(m);
+        }
+        if (tx.isEmpty()) return;
+        try {
+            conn.transact(tx).get();
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String typeName(byte type) {
+        for (Iterator<Map.Entry<String, Byte>> it = TYPE_CODES.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, Byte> entry = it.next();
+            if (entry.getValue() == type) return entry.getKey();
+        }
+        throw new IllegalArgumentException("Unknown type code " + type);
+    }
+
+    private static void readEntity(In in, List<Object> parts, List<Attr> attrs, Map<Long, Object> tempids, List batch) {
+        long e = in.varlong();
+        Object tempid = tempid(tempids, parts.get((int) in.varlong()), e);
+        for (long n = in.varlong(); n > 0; n--) {
+            Attr a = attrs.get((int) in.varlong());
+            batch.add(list(DB_ADD, tempid, a.keyword, readValue(in, a.type, parts, tempids)));
+        }
+    }
+
+    /**
+     * The tempid for source entity e, the same one every time it is
+     * mentioned. Source ids are far outside the range of numbered user
+     * tempids, so each gets a fresh tempid instead of one derived from it.
+     */
+    private static Object tempid(Map<Long, Object> tempids, Object part, long e) {
+        Object tempid = tempids.get(e);
+        if (tempid == null) {
+            tempid = Peer.tempid(part);
+            tempids.put(e, tempid);
+        }
+        return tempid;
+    }
+
+    private static Object readValue(In in, byte type, List<Object> parts, Map<Long, Object> tempids) {
+        switch (type) {
+            case REF:
+                if (in.u8() == REF_IDENT) return read(in.string());
+                Object part = parts.get((int) in.varlong());
+                return tempid(tempids, part, in.varlong());
+            case STRING: return in.string();
+            case LONG: return in.zigzag();
+            case BOOLEAN: return in.u8() != 0;
+            case DOUBLE: return Double.longBitsToDouble(in.fixed64());
+            case FLOAT: return Float.intBitsToFloat(in.fixed32());
+            case INSTANT: return new Date(in.zigzag());
+            case UUID_TYPE: return new UUID(in.fixed64(), in.fixed64());
+            case URI_TYPE: return URI.create(in.string());
+            case BIGINT: return new BigInteger(in.bytes((int) in.varlong()));
+            case BIGDEC: {
+                int scale = (int) in.zigzag();
+                return new BigDecimal(new BigInteger(in.bytes((int) in.varlong())), scale);
+            }
+            case KEYWORD: return read(in.string());
+            case BYTES: return in.bytes((int) in.varlong());
+            case FN: return read(in.string());
+            default: throw new IllegalArgumentException("Unknown type code " + type);
+        }
+    }
+
+    private static class Out {
+        final OutputStream out;
+        long position;
+
+        Out(OutputStream out) {
+            this.out = out;
+        }
+
+        void write(int b) throws IOException {
+            out.write(b);
+            position++;
+        }
+
+        void varlong(long v) throws IOException {
+            while ((v & ~0x7FL) != 0) {
+                write((int) ((v & 0x7F) | 0x80));
+                v >>>= 7;
+            }
+            write((int) v);
+        }
+
+        void zigzag(long v) throws IOException {
+            varlong((v << 1) ^ (v >> 63));
+        }
+
+        void fixed64(long v) throws IOException {
+            for (int shift = 56; shift >= 0; shift -= 8) write((int) (v >>> shift));
+        }
+
+        void fixed32(int v) throws IOException {
+            for (int shift = 24; shift >= 0; shift -= 8) write(v >>> shift);
+        }
+
+        void bytes(byte[] b) throws IOException {
+            varlong(b.length);
+            out.write(b);
+            position += b.length;
+        }
+
+        void string(String s) throws IOException {
+            bytes(s.getBytes(UTF8));
+        }
+
+        void close() throws IOException {
+            out.close();
+        }
+    }
+
+    /**
+     * Reads through a sliding memory mapping, so files larger than a
+     * single MappedByteBuffer can hold are still supported.
+     */
+    private static class In {
+        private static final long WINDOW = 1L << 28;
+
+        final FileChannel channel;
+        final long size;
+        MappedByteBuffer buf;
+        long base;
+
+        In(FileChannel channel) throws IOException {
+            this.channel = channel;
+            this.size = channel.size();
+            map(0, 0);
+        }
+
+        long position() {
+            return base + buf.position();
+        }
+
+        void seek(long pos) {
+            if (pos >= base && pos <= base + buf.limit()) {
+                buf.position((int) (pos - base));
+            } else {
+                map(pos, 0);
+            }
+        }
+
+        private void ensure(long n) {
+            if (buf.remaining() < n) map(position(), n);
+        }
+
+        private void map(long pos, long n) {
+            long len = Math.min(size - pos, Math.max(WINDOW, n));
+            try {
+                if (len < n) throw new EOFException("Snapshot ends at " + size + ", wanted " + n + " bytes at " + pos);
+                buf = channel.map(FileChannel.MapMode.READ_ONLY, pos, len);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            base = pos;
+        }
+
+        int u8() {
+            ensure(1);
+            return buf.get() & 0xFF;
+        }
+
+        long varlong() {
+            long v = 0;
+            for (int shift = 0; ; shift += 7) {
+                int b = u8();
+                v |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return v;
+            }
+        }
+
+        long zigzag() {
+            long v = varlong();
+            return (v >>> 1) ^ -(v & 1);
+        }
+
+        long fixed64() {
+            ensure(8);
+            return buf.getLong();
+        }
+
+        int fixed32() {
+            ensure(4);
+            return buf.getInt();
+        }
+
+        byte[] bytes(int n) {
+            ensure(n);
+            byte[] b = new byte[n];
+            buf.get(b);
+            return b;
+        }
+
+        String string() {
+            return new String(bytes((int) varlong()), UTF8);
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package datomic.samples;
+
+import datomic.Database;
+import datomic.Peer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static datomic.Connection.DB_AFTER;
+import static datomic.Connection.TEMPIDS;
+import static datomic.Util.read;
+
+/**
+ * Remembers what tempids resolved to, so that tx data split across
+ * several transactions can keep referring to the same entities.
+ */
+public class Tempids {
+    private static final Class TEMPID_CLASS = Peer.tempid(":db.part/user").getClass();
+    private static final Object PART = read(":part");
+    private static final Object TX_PART = read(":db.part/tx");
+    private static final Object TX_PART_SYMBOL = read("db.part/tx");
+
+    private final Map<Object, Object> resolved = new ConcurrentHashMap<Object, Object>();
+
+    public static boolean isTempid(Object o) {
+        return o != null && o.getClass() == TEMPID_CLASS;
+    }
+
+    /**
+     * True for tempids in :db.part/tx. These name the current transaction,
+     * so they must never be carried over to a later one.
+     */
+    public static boolean isTxTempid(Object o) {
+        if (!isTempid(o) || !(o instanceof Map)) return false;
+        Object part = ((Map) o).get(PART);
+        return TX_PART.equals(part) || TX_PART_SYMBOL.equals(part);
+    }
+
+    /**
+     * Adds every tempid found anywhere inside form to into.
+     */
+    public static void collect(Object form, Collection<Object> into) {
+        if (isTempid(form)) {
+            into.add(form);
+        } else if (form instanceof Map) {
+            for (Iterator<Map.Entry> it = ((Map) form).entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry entry = it.next();
+                collect(entry.getKey(), into);
+                collect(entry.getValue(), into);
+            }
+        } else if (form instanceof Collection) {
+            for (Iterator it = ((Collection) form).iterator(); it.hasNext(); ) {
+                collect(it.next(), into);
+            }
+        }
+    }
+
+    /**
+     * Forgets every resolution, e.g. at the end of the transaction the
+     * tempids were written in.
+     */
+    public void clear() {
+        resolved.clear();
+    }
+
+    /**
+     * @return the entity id tempid resolved to, or null if not yet known
+     */
+    public Object get(Object tempid) {
+        return resolved.get(tempid);
+    }
+
+    /**
+     * Returns form with every already resolved tempid replaced by its
+     * entity id. Containers without replacements are returned unchanged.
+     */
+    public Object resolve(Object form) {
+        if (isTempid(form)) {
+            Object id = resolved.get(form);
+            return id == null ? form : id;
+        } else if (form instanceof Map) {
+            Map m = (Map) form;
+            Map result = null;
+            for (Iterator<Map.Entry> it = m.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry entry = it.next();
+                Object k = resolve(entry.getKey());
+                Object v = resolve(entry.getValue());
+                if (result == null && (k != entry.getKey() || v != entry.getValue())) {
+                    result = new HashMap(m);
+                    result.remove(entry.getKey());
+                }
+                if (result != null) result.put(k, v);
+            }
+            return result == null ? form : result;
+        } else if (form instanceof List) {
+            List l = (List) form;
+            List result = null;
+            for (int i = 0; i < l.size(); i++) {
+                Object o = l.get(i);
+                Object r = resolve(o);
+                if (result == null && r != o) {
+                    result = new ArrayList(l.subList(0, i));
+                }
+                if (result != null) result.add(r);
+            }
+            return result == null ? form : result;
+        }
+        return form;
+    }
+
+    /**
+     * Records what each of tempids resolved to in a completed transaction.
+     * Tempids the transaction did not mention, and tx tempids, are ignored.
+     *
+     * @param txResult  the map returned by a completed transaction
+     * @param tempids   tempids that appeared in that transaction's data
+     */
+    public void record(Map txResult, Collection<Object> tempids) {
+        Database dbAfter = (Database) txResult.get(DB_AFTER);
+        Object ids = txResult.get(TEMPIDS);
+        for (Iterator<Object> it = tempids.iterator(); it.hasNext(); ) {
+            Object tempid = it.next();
+            if (isTxTempid(tempid)) continue;
+            Object id = Peer.resolveTempid(dbAfter, ids, tempid);
+            if (id != null) resolved.put(tempid, id);
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package datomic.samples;
+
+import clojure.lang.Keyword;
+import datomic.Connection;
+import datomic.ListenableFuture;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import static datomic.Connection.TX_DATA;
+import static datomic.samples.IO.LoadException;
+import static datomic.samples.IO.LoadReport;
+
+/**
+ * Loads batches of tx data concurrently where their tempids allow it.
+ *
+ * The first batch to mention a tempid owns it. Any later batch mentioning
+ * the same tempid depends on the owner, and is only submitted once the
+ * owner has committed and the tempid can be replaced by its entity id.
+ * Batches with no unfinished dependencies are submitted immediately, up to
+ * inFlight at a time, so independent branches of the data (e.g. separate
+ * districts and their neighborhoods) load side by side.
+ *
+ * Tempids are scoped to a source transaction: when a batch is the last
+ * TxChunker.Chunk of its transaction, later batches start with no tempids
+ * owned or resolved, as if written in a separate file. Batches that are
+ * not Chunks all share one scope.
+ *
+ * Some batches depend on earlier ones in ways tempids do not show. A
+ * batch that installs or alters schema, or asserts an ident, is a
+ * barrier: it waits for every earlier batch, and every later batch waits
+ * for it. So keyword references, which can only name idents, always see
+ * the idents asserted before them. A batch using lookup refs also waits
+ * for every earlier batch, since the entity a lookup ref names may be in
+ * any of them.
+ *
+ * Otherwise independent batches may commit out of input order. Do not use
+ * this for data whose meaning depends on commit order in other ways.
+ */
+public class TxBatchGraph {
+    private static final Executor SAME_THREAD = new Executor() {
+        public void execute(Runnable r) {
+            r.run();
+        }
+    };
+
+    /**
+     * Tempid state for one source transaction.
+     */
+    private static class Scope {
+        final Tempids resolved = new Tempids();
+        final Map<Object, Node> owners = new HashMap<Object, Node>();
+    }
+
+    private static class Node {
+        final long index;
+        final List tx;
+        final Scope scope;
+        final boolean barrier;
+        final boolean ordered;
+        final Set<Object> tempids = new HashSet<Object>();
+        final List<Node> dependents = new ArrayList<Node>();
+        int unfinishedDeps;
+        ListenableFuture<Map> result;
+
+        Node(long index, List tx, Scope scope) {
+            this.index = index;
+            this.tx = tx;
+            this.scope = scope;
+            this.barrier = definesIdents(tx);
+            this.ordered = barrier || usesLookupRefs(tx);
+        }
+    }
+
+    private final Connection conn;
+    private final int inFlight;
+    private final int lookahead;
+    /** batches read and not yet finished, in input order */
+    private final Set<Node> unfinished = new LinkedHashSet<Node>();
+    private Node lastBarrier;
+    private Scope scope = new Scope();
+    private final PriorityQueue<Node> ready = new PriorityQueue<Node>(16, new Comparator<Node>() {
+        public int compare(Node a, Node b) {
+            return a.index < b.index ? -1 : (a.index == b.index ? 0 : 1);
+        }
+    });
+    private final LinkedBlockingQueue<Node> completions = new LinkedBlockingQueue<Node>();
+
+    /**
+     * @param conn       a connection
+     * @param inFlight   maximum number of batches awaiting a result
+     * @param lookahead  maximum number of batches read ahead of the oldest
+     *                   unfinished one, bounding memory on large inputs
+     */
+    public TxBatchGraph(Connection conn, int inFlight, int lookahead) {
+        if (inFlight < 1 || lookahead < inFlight) {
+            throw new IllegalArgumentException("Need 0 < inFlight <= lookahead, got " + inFlight + ", " + lookahead);
+        }
+        this.conn = conn;
+        this.inFlight = inFlight;
+        this.lookahead = lookahead;
+    }
+
+    public LoadReport transact(Iterator<List> batches) {
+        long start = System.nanoTime();
+        long read = 0;
+        long finished = 0;
+        int running = 0;
+        long datoms = 0;
+        LoadException failure = null;
+        while (true) {
+            while (failure == null && read - finished < lookahead && batches.hasNext()) {
+                List batch = batches.next();
+                add(new Node(read++, batch, scope));
+                if (TxChunker.endsTransaction(batch)) scope = new Scope();
+            }
+            while (failure == null && running < inFlight && !ready.isEmpty()) {
+                submit(ready.poll());
+                running++;
+            }
+            if (running == 0) break;
+            Node node = takeCompletion();
+            running--;
+            finished++;
+            try {
+                Map result = node.result.get();
+                datoms += ((Collection) result.get(TX_DATA)).size();
+                node.scope.resolved.record(result, node.tempids);
+                finish(node);
+            } catch (ExecutionException e) {
+                if (failure == null) failure = new LoadException(node.index, e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                if (failure == null) failure = new LoadException(node.index, e);
+            }
+        }
+        if (failure != null) throw failure;
+        return new LoadReport(finished, datoms, System.nanoTime() - start);
+    }
+
+    private void add(Node node) {
+        Tempids.collect(node.tx, node.tempids);
+        Set<Node> deps = new HashSet<Node>();
+        if (node.ordered) {
+            deps.addAll(unfinished);
+        } else if (lastBarrier != null) {
+            deps.add(lastBarrier);
+        }
+        for (Iterator<Object> it = node.tempids.iterator(); it.hasNext(); ) {
+            Object tempid = it.next();
+            if (Tempids.isTxTempid(tempid) || node.scope.resolved.get(tempid) != null) continue;
+            Node owner = node.scope.owners.get(tempid);
+            if (owner == null) {
+                node.scope.owners.put(tempid, node);
+            } else {
+                deps.add(owner);
+            }
+        }
+        for (Iterator<Node> it = deps.iterator(); it.hasNext(); ) {
+            it.next().dependents.add(node);
+            node.unfinishedDeps++;
+        }
+        unfinished.add(node);
+        if (node.barrier) lastBarrier = node;
+        if (node.unfinishedDeps == 0) ready.add(node);
+    }
+
+    private void submit(final Node node) {
+        node.result = conn.transactAsync((List) node.scope.resolved.resolve(node.tx));
+        node.result.addListener(new Runnable() {
+            public void run() {
+                completions.add(node);
+            }
+        }, SAME_THREAD);
+    }
+
+    private Node takeCompletion() {
+        try {
+            return completions.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void finish(Node node) {
+        for (Iterator<Object> it = node.tempids.iterator(); it.hasNext(); ) {
+            Object tempid = it.next();
+            if (node.scope.owners.get(tempid) == node) node.scope.owners.remove(tempid);
+        }
+        unfinished.remove(node);
+        if (lastBarrier == node) lastBarrier = null;
+        for (Iterator<Node> it = node.dependents.iterator(); it.hasNext(); ) {
+            Node dependent = it.next();
+            if (--dependent.unfinishedDeps == 0) ready.add(dependent);
+        }
+    }
+
+    /**
+     * True if form asserts an ident or installs or alters schema.
+     */
+    private static boolean definesIdents(Object form) {
+        if (form instanceof Map && !Tempids.isTempid(form)) {
+            for (Iterator<Map.Entry> it = ((Map) form).entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry entry = it.next();
+                if (isSchemaAttribute(entry.getKey()) || definesIdents(entry.getValue())) return true;
+            }
+        } else if (form instanceof List && !((List) form).isEmpty() && ((List) form).get(0) instanceof Keyword) {
+            List l = (List) form;
+            return l.size() > 2 && isSchemaAttribute(l.get(2));
+        } else if (form instanceof Collection) {
+            for (Iterator it = ((Collection) form).iterator(); it.hasNext(); ) {
+                if (definesIdents(it.next())) return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isSchemaAttribute(Object attr) {
+        String name = String.valueOf(attr);
+        return name.equals(":db/ident") || name.startsWith(":db.install/") || name.startsWith(":db.alter/");
+    }
+
+    /**
+     * True if any entity id or value in tx is a lookup ref, e.g.
+     * [:artist/gid #uuid "..."].
+     */
+    private static boolean usesLookupRefs(List tx) {
+        for (Iterator it = tx.iterator(); it.hasNext(); ) {
+            Object element = it.next();
+            if (element instanceof List) {
+                List l = (List) element;
+                for (int i = 1; i < l.size(); i++) {
+                    if (isLookupRef(l.get(i))) return true;
+                }
+            } else if (isLookupRef(element)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isLookupRef(Object v) {
+        if (v instanceof List) {
+            List l = (List) v;
+            if (l.size() == 2 && l.get(0) instanceof Keyword) return true;
+            for (Iterator it = l.iterator(); it.hasNext(); ) {
+                if (isLookupRef(it.next())) return true;
+            }
+        } else if (v instanceof Map && !Tempids.isTempid(v)) {
+            for (Iterator it = ((Map) v).values().iterator(); it.hasNext(); ) {
+                if (isLookupRef(it.next())) return true;
+            }
+        } else if (v instanceof Collection) {
+            for (Iterator it = ((Collection) v).iterator(); it.hasNext(); ) {
+                if (isLookupRef(it.next())) return true;
+            }
+        }
+        return false;
+    }
+}
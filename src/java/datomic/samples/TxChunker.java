@@ -0,0 +1,175 @@
+package datomic.samples;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import static datomic.Util.read;
+
+/**
+ * Splits transactions into chunks of roughly a target size, so load
+ * granularity can be tuned independently of how the source file was
+ * written. Individual tx data elements (entity maps, list forms) are
+ * never split. Elements asserting on the transaction entity itself are
+ * repeated in every chunk.
+ *
+ * Chunks may refer to tempids introduced in other chunks of the same
+ * transaction; transact them through IO.transactAllChunked, which
+ * resolves those references. A tempid means nothing outside the
+ * transaction it was written in, so each chunk records whether it is
+ * the last of its transaction.
+ */
+public class TxChunker {
+    private static final Object DB_ID = read(":db/id");
+
+    /**
+     * Some of the tx data of one source transaction.
+     */
+    public static class Chunk extends ArrayList {
+        /** true if this is the last chunk of its source transaction */
+        public final boolean last;
+
+        Chunk(Collection data, boolean last) {
+            super(data);
+            this.last = last;
+        }
+    }
+
+    /**
+     * True if chunk is the last one of its source transaction. Lists not
+     * made by a TxChunker never end one.
+     */
+    public static boolean endsTransaction(List chunk) {
+        return chunk instanceof Chunk && ((Chunk) chunk).last;
+    }
+
+    private final int maxDatoms;
+    private final long maxBytes;
+
+    /**
+     * @param maxDatoms  target datoms per chunk
+     * @param maxBytes   target estimated bytes per chunk, or 0 for no limit
+     */
+    public TxChunker(int maxDatoms, long maxBytes) {
+        if (maxDatoms < 1) {
+            throw new IllegalArgumentException("maxDatoms must be positive, got " + maxDatoms);
+        }
+        this.maxDatoms = maxDatoms;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Splits tx into chunks, the last of which ends the transaction.
+     */
+    public List<List> split(List tx) {
+        List txMeta = new ArrayList();
+        List<List> chunks = new ArrayList<List>();
+        List chunk = new ArrayList();
+        int datoms = 0;
+        long bytes = 0;
+        for (Iterator it = tx.iterator(); it.hasNext(); ) {
+            Object element = it.next();
+            if (element instanceof Map && Tempids.isTxTempid(((Map) element).get(DB_ID))) {
+                txMeta.add(element);
+                continue;
+            }
+            int d = datoms(element);
+            long b = maxBytes > 0 ? bytes(element) : 0;
+            if (!chunk.isEmpty() && (datoms + d > maxDatoms || (maxBytes > 0 && bytes + b > maxBytes))) {
+                chunks.add(chunk);
+                chunk = new ArrayList();
+                datoms = 0;
+                bytes = 0;
+            }
+            chunk.add(element);
+            datoms += d;
+            bytes += b;
+        }
+        if (!chunk.isEmpty() || chunks.isEmpty()) chunks.add(chunk);
+        for (int i = 0; i < chunks.size(); i++) {
+            List data = chunks.get(i);
+            if (!txMeta.isEmpty()) {
+                data = new ArrayList(txMeta);
+                data.addAll(chunks.get(i));
+            }
+            chunks.set(i, new Chunk(data, i == chunks.size() - 1));
+        }
+        return chunks;
+    }
+
+    /**
+     * Lazily splits each of txes, preserving order.
+     */
+    public Iterator<List> chunks(final Iterator<List> txes) {
+        return new Iterator<List>() {
+            private Iterator<List> current = Collections.<List>emptyList().iterator();
+
+            public boolean hasNext() {
+                while (!current.hasNext() && txes.hasNext()) {
+                    current = split(txes.next()).iterator();
+                }
+                return current.hasNext();
+            }
+
+            public List next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                return current.next();
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Estimated number of datoms a tx data element will assert.
+     */
+    public static int datoms(Object element) {
+        if (!(element instanceof Map)) return 1;
+        int n = 0;
+        for (Iterator<Map.Entry> it = ((Map) element).entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry entry = it.next();
+            if (DB_ID.equals(entry.getKey())) continue;
+            Object v = entry.getValue();
+            if (v instanceof Map && !Tempids.isTempid(v)) {
+                n += 1 + datoms(v);
+            } else if (v instanceof Collection) {
+                for (Iterator vs = ((Collection) v).iterator(); vs.hasNext(); ) {
+                    Object each = vs.next();
+                    n += each instanceof Map && !Tempids.isTempid(each) ? 1 + datoms(each) : 1;
+                }
+            } else {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Rough size in bytes of a tx data element, without serializing it.
+     */
+    public static long bytes(Object element) {
+        if (element instanceof String) {
+            return ((String) element).length();
+        } else if (element instanceof Map && !Tempids.isTempid(element)) {
+            long n = 2;
+            for (Iterator<Map.Entry> it = ((Map) element).entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry entry = it.next();
+                n += bytes(entry.getKey()) + bytes(entry.getValue());
+            }
+            return n;
+        } else if (element instanceof Collection) {
+            long n = 2;
+            for (Iterator it = ((Collection) element).iterator(); it.hasNext(); ) {
+                n += bytes(it.next());
+            }
+            return n;
+        }
+        return 8;
+    }
+}
@@ -0,0 +1,139 @@
+package datomic.samples;
+
+import datomic.Database;
+import datomic.Datom;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static datomic.Connection.DB_AFTER;
+import static datomic.Connection.DB_BEFORE;
+import static datomic.Connection.TX_DATA;
+
+/**
+ * Groups transaction reports into micro-batches, so downstream work can
+ * be done once per batch rather than once per transaction. A batch closes
+ * when it holds maxReports reports, or maxWaitMillis after its first
+ * report arrived, whichever comes first.
+ */
+public class TxReportBatcher {
+    public interface Handler {
+        void batch(Batch batch);
+    }
+
+    public static class Batch {
+        public final List<Map> reports;
+        /** database value before the first report in the batch */
+        public final Database dbBefore;
+        /** database value after the last report in the batch */
+        public final Database dbAfter;
+
+        private Collection<Datom> datoms;
+
+        Batch(List<Map> reports) {
+            this.reports = Collections.unmodifiableList(reports);
+            this.dbBefore = (Database) reports.get(0).get(DB_BEFORE);
+            this.dbAfter = (Database) reports.get(reports.size() - 1).get(DB_AFTER);
+        }
+
+        public long fromBasisT() {
+            return dbBefore.basisT();
+        }
+
+        public long toBasisT() {
+            return dbAfter.basisT();
+        }
+
+        /**
+         * The net change made by the whole batch, in first-seen order. A
+         * fact asserted and later retracted within the batch (or the other
+         * way around) cancels out and does not appear.
+         */
+        public Collection<Datom> datoms() {
+            if (datoms == null) {
+                LinkedHashMap<Fact, Datom> net = new LinkedHashMap<Fact, Datom>();
+                for (Iterator<Map> it = reports.iterator(); it.hasNext(); ) {
+                    List<Datom> txData = (List<Datom>) it.next().get(TX_DATA);
+                    for (Iterator<Datom> ds = txData.iterator(); ds.hasNext(); ) {
+                        Datom d = ds.next();
+                        // changes to one fact alternate between assert and retract,
+                        // so a second sighting always undoes the first
+                        Fact f = new Fact(d);
+                        if (net.remove(f) == null) net.put(f, d);
+                    }
+                }
+                datoms = Collections.unmodifiableCollection(net.values());
+            }
+            return datoms;
+        }
+    }
+
+    private static class Fact {
+        final Object e;
+        final Object a;
+        final Object v;
+
+        Fact(Datom d) {
+            this.e = d.e();
+            this.a = d.a();
+            this.v = d.v();
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Fact)) return false;
+            Fact f = (Fact) o;
+            return e.equals(f.e) && a.equals(f.a) && v.equals(f.v);
+        }
+
+        public int hashCode() {
+            return (e.hashCode() * 31 + a.hashCode()) * 31 + v.hashCode();
+        }
+    }
+
+    private final BlockingQueue<Map> queue;
+    private final int maxReports;
+    private final long maxWaitMillis;
+
+    public TxReportBatcher(BlockingQueue<Map> queue, int maxReports, long maxWaitMillis) {
+        if (maxReports < 1) {
+            throw new IllegalArgumentException("maxReports must be positive, got " + maxReports);
+        }
+        this.queue = queue;
+        this.maxReports = maxReports;
+        this.maxWaitMillis = maxWaitMillis;
+    }
+
+    /**
+     * Blocks until at least one report is available, then collects a batch.
+     */
+    public Batch next() throws InterruptedException {
+        List<Map> reports = new ArrayList<Map>();
+        reports.add(queue.take());
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+        while (reports.size() < maxReports) {
+            if (queue.drainTo(reports, maxReports - reports.size()) > 0) continue;
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) break;
+            Map report = queue.poll(remaining, TimeUnit.NANOSECONDS);
+            if (report == null) break;
+            reports.add(report);
+        }
+        return new Batch(reports);
+    }
+
+    /**
+     * Hands batches to handler until interrupted.
+     */
+    public void run(Handler handler) throws InterruptedException {
+        while (!Thread.currentThread().isInterrupted()) {
+            handler.batch(next());
+        }
+    }
+}
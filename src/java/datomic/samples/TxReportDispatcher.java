@@ -0,0 +1,324 @@
+package datomic.samples;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static datomic.Connection.DB_AFTER;
+import static datomic.Connection.DB_BEFORE;
+import static datomic.Connection.TX_DATA;
+
+/**
+ * Reads a connection's txReportQueue once and fans each report out to
+ * any number of subscribers, each running on its own thread.
+ *
+ * Reports are published into a fixed size ring. Every subscriber has its
+ * own cursor into the ring, and a policy for what happens when it falls
+ * a full ring behind:
+ * <ul>
+ * <li>BLOCK: publishing waits for the subscriber to catch up</li>
+ * <li>DROP: the subscriber's oldest unread report is discarded</li>
+ * <li>COALESCE: the oldest unread report is merged into a single pending
+ *     report (db-before of the first, db-after of the last, all tx-data),
+ *     delivered before the rest of the ring</li>
+ * </ul>
+ * A subscriber that throws from report is logged and counted as failed,
+ * and goes on to the next report. A ring slot is cleared once every
+ * subscriber has read it, so reports are not kept alive by the ring.
+ *
+ * stop() only stops the dispatcher's threads. The caller still owns the
+ * queue, and must call removeTxReportQueue on the connection afterwards.
+ */
+public class TxReportDispatcher {
+    private static final Logger log = LoggerFactory.getLogger(TxReportDispatcher.class);
+
+    public enum Backpressure { BLOCK, DROP, COALESCE }
+
+    public interface Subscriber {
+        void report(Map txReport);
+    }
+
+    public class Subscription {
+        public final String name;
+        public final Backpressure policy;
+        private final Subscriber subscriber;
+        private long cursor;
+        private Map pending;
+        private long delivered;
+        private long dropped;
+        private long coalesced;
+        private long failed;
+
+        private Subscription(String name, Backpressure policy, Subscriber subscriber) {
+            this.name = name;
+            this.policy = policy;
+            this.subscriber = subscriber;
+        }
+
+        /**
+         * @return reports published but not yet taken by this subscriber
+         */
+        public long lag() {
+            lock.lock();
+            try {
+                return published - cursor + (pending == null ? 0 : 1);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public long delivered() {
+            lock.lock();
+            try {
+                return delivered;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public long dropped() {
+            lock.lock();
+            try {
+                return dropped;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * @return reports folded into a coalesced report
+         */
+        public long coalesced() {
+            lock.lock();
+            try {
+                return coalesced;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * @return reports the subscriber threw on
+         */
+        public long failed() {
+            lock.lock();
+            try {
+                return failed;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public String toString() {
+            return name + " " + policy + " lag=" + lag() + " delivered=" + delivered()
+                    + " dropped=" + dropped() + " coalesced=" + coalesced() + " failed=" + failed();
+        }
+
+        private Map take() throws InterruptedException {
+            lock.lock();
+            try {
+                while (pending == null && cursor == published) {
+                    notEmpty.await();
+                }
+                Map report;
+                if (pending != null) {
+                    report = pending;
+                    pending = null;
+                } else {
+                    report = ring[(int) (cursor & mask)];
+                    cursor++;
+                    release();
+                    notFull.signalAll();
+                }
+                delivered++;
+                return report;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void run() {
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    Map report = take();
+                    try {
+                        subscriber.report(report);
+                    } catch (RuntimeException e) {
+                        log.error("Subscriber " + name + " failed on a tx report", e);
+                        lock.lock();
+                        try {
+                            failed++;
+                        } finally {
+                            lock.unlock();
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private final BlockingQueue<Map> queue;
+    private final Map[] ring;
+    private final long mask;
+    private final List<Subscription> subscriptions = new ArrayList<Subscription>();
+    private final List<Thread> threads = new ArrayList<Thread>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private long published;
+    /** slots before this have been read by every subscriber and cleared */
+    private long released;
+
+    /**
+     * @param queue     a connection's txReportQueue
+     * @param capacity  ring size, rounded up to a power of two
+     */
+    public TxReportDispatcher(BlockingQueue<Map> queue, int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        this.queue = queue;
+        this.ring = new Map[size];
+        this.mask = size - 1;
+    }
+
+    /**
+     * Registers a subscriber. Subscribers must be added before start.
+     */
+    public Subscription subscribe(String name, Backpressure policy, Subscriber subscriber) {
+        if (!threads.isEmpty()) {
+            throw new IllegalStateException("Dispatcher already started");
+        }
+        Subscription s = new Subscription(name, policy, subscriber);
+        subscriptions.add(s);
+        return s;
+    }
+
+    public List<Subscription> subscriptions() {
+        return subscriptions;
+    }
+
+    /**
+     * @return total reports read from the queue
+     */
+    public long published() {
+        lock.lock();
+        try {
+            return published;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void start() {
+        if (!threads.isEmpty()) {
+            throw new IllegalStateException("Dispatcher already started");
+        }
+        for (Iterator<Subscription> it = subscriptions.iterator(); it.hasNext(); ) {
+            final Subscription s = it.next();
+            threads.add(new Thread(new Runnable() {
+                public void run() {
+                    s.run();
+                }
+            }, "tx-report-" + s.name));
+        }
+        threads.add(new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while (!Thread.currentThread().isInterrupted()) {
+                        publish(queue.take());
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, "tx-report-dispatcher"));
+        for (Iterator<Thread> it = threads.iterator(); it.hasNext(); ) {
+            it.next().start();
+        }
+    }
+
+    public void stop() {
+        for (Iterator<Thread> it = threads.iterator(); it.hasNext(); ) {
+            it.next().interrupt();
+        }
+    }
+
+    private void publish(Map report) throws InterruptedException {
+        lock.lock();
+        try {
+            while (makeRoom()) {
+                notFull.await();
+            }
+            release();
+            ring[(int) (published & mask)] = report;
+            published++;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Applies DROP and COALESCE policies to full subscribers.
+     *
+     * @return true if a BLOCK subscriber is still a full ring behind
+     */
+    private boolean makeRoom() {
+        boolean blocked = false;
+        for (Iterator<Subscription> it = subscriptions.iterator(); it.hasNext(); ) {
+            Subscription s = it.next();
+            if (published - s.cursor < ring.length) continue;
+            switch (s.policy) {
+                case BLOCK:
+                    blocked = true;
+                    break;
+                case DROP:
+                    s.cursor++;
+                    s.dropped++;
+                    break;
+                case COALESCE:
+                    s.pending = merge(s.pending, ring[(int) (s.cursor & mask)]);
+                    s.cursor++;
+                    s.coalesced++;
+                    break;
+            }
+        }
+        return blocked;
+    }
+
+    /**
+     * Clears the slots every subscriber has read. Called holding lock.
+     */
+    private void release() {
+        long oldest = published;
+        for (Iterator<Subscription> it = subscriptions.iterator(); it.hasNext(); ) {
+            oldest = Math.min(oldest, it.next().cursor);
+        }
+        for (; released < oldest; released++) {
+            ring[(int) (released & mask)] = null;
+        }
+    }
+
+    /**
+     * Combines two consecutive transaction reports into one spanning both.
+     */
+    public static Map merge(Map earlier, Map later) {
+        if (earlier == null) return later;
+        List txData = new ArrayList((List) earlier.get(TX_DATA));
+        txData.addAll((List) later.get(TX_DATA));
+        Map merged = new HashMap();
+        merged.put(DB_BEFORE, earlier.get(DB_BEFORE));
+        merged.put(DB_AFTER, later.get(DB_AFTER));
+        merged.put(TX_DATA, txData);
+        return merged;
+    }
+}
@@ -4,12 +4,9 @@ import datomic.Connection;
 import datomic.Datom;
 
 import java.util.*;
-import java.util.concurrent.BlockingQueue;
 
 import static datomic.Connection.DB_AFTER;
 import static datomic.Peer.connect;
-import static datomic.Connection.TX_DATA;
-import static datomic.Peer.q;
 
 public class TxReportWatcher {
     public static void main(String[] args) {
@@ -26,34 +23,22 @@ public class TxReportWatcher {
 
     private static void watchTxReports(String url, String attr) {
         final Connection conn = connect(url);
-        final Object attrid = conn.db().entid(attr);
-        if (attrid == null) {
-            throw new IllegalArgumentException("No attribute named " + attr);
-        }
-        final BlockingQueue<Map> queue = conn.txReportQueue();
-        new Thread(new Runnable() {
+        final DatomFilter filter = DatomFilter.forAttributes(conn.db(), attr);
+        final DatomFilter.Handler printer = new DatomFilter.Handler() {
             @Override
-            public void run() {
-                while (true) {
-                    try {
-                        final Map tx = queue.take();
-                        Collection<List<Object>> results = q(byAttribute, tx.get(TX_DATA), attrid);
-                        for (Iterator<List<Object>> iterator = results.iterator(); iterator.hasNext(); ) {
-                            printList(iterator.next());
-                        }
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
-                }
+            public void datom(Datom d) {
+                System.out.print(d.e());
+                System.out.print(" ");
+                System.out.println(d.v());
             }
-        }).run();
-    }
-
-    private static void printList(List<Object> next) {
-        for (java.util.Iterator iterator = next.iterator(); iterator.hasNext(); ) {
-            System.out.print(iterator.next());
-            System.out.print(" ");
-        }
-        System.out.println("");
+        };
+        TxReportDispatcher dispatcher = new TxReportDispatcher(conn.txReportQueue(), 1024);
+        dispatcher.subscribe("printer", TxReportDispatcher.Backpressure.BLOCK, new TxReportDispatcher.Subscriber() {
+            @Override
+            public void report(Map txReport) {
+                filter.eachInReport(txReport, printer);
+            }
+        });
+        dispatcher.start();
     }
 }
@@ -0,0 +1,35 @@
+(ns datomic.samples.sketches
+  "Approximate aggregates for :find, backed by datomic.samples.Sketches.
+  Datomic loads this namespace the first time a query names one of them.
+
+  These are a convenience only: Datomic collects each group's values
+  before calling an aggregate, so they use as much memory as the built in
+  aggregates. For bounded memory, feed sketches from the datoms with
+  datomic.samples.Sketches/scan instead."
+  (:import datomic.samples.Sketches))
+
+(defn count-distinct
+  "HyperLogLog distinct count, by default within about 1%."
+  ([vals] (Sketches/countDistinct vals))
+  ([error vals] (Sketches/countDistinct error vals)))
+
+(defn quantile
+  "KLL estimate of the q-quantile, q between 0 and 1."
+  [q vals]
+  (Sketches/quantile q vals))
+
+(defn median
+  [vals]
+  (Sketches/median vals))
+
+(defn mean
+  [vals]
+  (Sketches/mean vals))
+
+(defn variance
+  [vals]
+  (Sketches/variance vals))
+
+(defn stddev
+  [vals]
+  (Sketches/stddev vals))